@@ -1,23 +1,33 @@
 package img2graph.cli;
 
 import img2graph.core.Arguments;
+import img2graph.core.Graph;
+import img2graph.core.GraphFile;
 import img2graph.core.ImageToGraph;
+import img2graph.core.Neo4jImport;
 import img2graph.core.Output;
 import java.awt.*;
 import java.awt.datatransfer.StringSelection;
+import java.io.BufferedWriter;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.concurrent.Callable;
+import java.util.zip.GZIPOutputStream;
 import javax.imageio.ImageIO;
 import picocli.CommandLine;
 
 @CommandLine.Command(name = "img2graph", description = "Convert an image to a graph")
 public final class Application implements Callable<Integer> {
 
-    @CommandLine.Parameters(index = "0", description = "Path to image to operate on")
+    @CommandLine.Parameters(
+            index = "0",
+            description = "Path to image, or to a .i2g graph file written before, to operate on")
     private Path input;
 
     @CommandLine.Option(
@@ -65,7 +75,8 @@ public final class Application implements Callable<Integer> {
 
     @CommandLine.Option(
             names = "--color-depth",
-            description = "Color depth for simplified image. (default: ${DEFAULT-VALUE})")
+            description =
+                    "Color depth for simplified image, from 0 to 15. (default: ${DEFAULT-VALUE})")
     public int colorDepth = Arguments.DEFAULT_ARGUMENTS.colorDepth();
 
     @CommandLine.Option(
@@ -83,6 +94,75 @@ public final class Application implements Callable<Integer> {
             description = "Outline on nodes. (default: ${DEFAULT-VALUE})")
     public boolean outline = Arguments.DEFAULT_ARGUMENTS.outline();
 
+    @CommandLine.Option(
+            names = "--exact-median-cut",
+            description =
+                    "Run median cut on every pixel instead of the color histogram. (default:"
+                            + " ${DEFAULT-VALUE})")
+    public boolean exactMedianCut = Arguments.DEFAULT_ARGUMENTS.exactMedianCut();
+
+    @CommandLine.Option(
+            names = "--seed",
+            description =
+                    "Seed for placing nodes, the same seed gives the same graph. (default: random)")
+    public Long seed = Arguments.DEFAULT_ARGUMENTS.seed();
+
+    @CommandLine.Option(
+            names = "--poisson-disk",
+            description =
+                    "Place nodes by growing out from the previous ones instead of at random."
+                            + " (default: ${DEFAULT-VALUE})")
+    public boolean poissonDisk = Arguments.DEFAULT_ARGUMENTS.poissonDisk();
+
+    @CommandLine.Option(
+            names = "--delaunay",
+            description =
+                    "Only connect nodes which share an edge of a Delaunay triangulation, which"
+                            + " never cross each other. (default: ${DEFAULT-VALUE})")
+    public boolean delaunay = Arguments.DEFAULT_ARGUMENTS.delaunay();
+
+    @CommandLine.Option(
+            names = "--compact-svg",
+            description =
+                    "Group the SVG by color, with all relationships of a color in one path."
+                            + " (default: ${DEFAULT-VALUE})")
+    public boolean compactSvg = Arguments.DEFAULT_ARGUMENTS.compactSvg();
+
+    @CommandLine.Option(
+            names = "--compress",
+            description =
+                    "Gzip the output files, as .svgz, .csv.gz and .json.gz. (default:"
+                            + " ${DEFAULT-VALUE})")
+    public boolean compress = false;
+
+    @CommandLine.Option(
+            names = "--graph-file",
+            description =
+                    "Also save the graph as a binary .i2g file, which can be given as input"
+                            + " again instead of an image. (default: ${DEFAULT-VALUE})")
+    public boolean graphFile = false;
+
+    @CommandLine.Option(
+            names = "--neo4j-import",
+            description =
+                    "Also write header and data files for neo4j-admin database import. (default:"
+                            + " ${DEFAULT-VALUE})")
+    public boolean neo4jImport = false;
+
+    @CommandLine.Option(
+            names = "--import-shards",
+            description =
+                    "Number of files the neo4j-admin import data is split into, written in"
+                            + " parallel. (default: ${DEFAULT-VALUE})")
+    public int importShards = 4;
+
+    @CommandLine.Option(
+            names = "--cypher",
+            description =
+                    "Also write a cypher-shell script creating the graph in batches. (default:"
+                            + " ${DEFAULT-VALUE})")
+    public boolean cypher = false;
+
     @CommandLine.Option(
             names = "--open",
             description = "Opens the generated Graph in Arrows.app. (default: ${DEFAULT-VALUE})")
@@ -99,6 +179,11 @@ public final class Application implements Callable<Integer> {
             System.err.println(input.toString() + " does not exist.");
             System.exit(1);
         }
+        if (colorDepth < 0 || colorDepth > Arguments.MAX_COLOR_DEPTH) {
+            System.err.println(
+                    "Color depth must be between 0 and " + Arguments.MAX_COLOR_DEPTH + ".");
+            System.exit(1);
+        }
         if (!Files.exists(output)) {
             Files.createDirectories(output);
         }
@@ -117,43 +202,92 @@ public final class Application implements Callable<Integer> {
                         colorDepth,
                         simplifiedColors,
                         transparentBg,
-                        outline);
-
-        var graph = new ImageToGraph().process(args, new FileInputStream(input.toFile()));
+                        outline,
+                        exactMedianCut,
+                        seed,
+                        poissonDisk,
+                        delaunay,
+                        compactSvg);
 
         var fileName = input.getFileName().toString();
         if (fileName.lastIndexOf('.') != -1) {
             fileName = fileName.substring(0, fileName.lastIndexOf('.'));
         }
-        ImageIO.write(graph.image(), "png", output.resolve(fileName + "_simplified.png").toFile());
+
+        Graph graph;
+        if (input.getFileName().toString().endsWith(".i2g")) {
+            graph = GraphFile.read(input);
+        } else {
+            graph = new ImageToGraph().process(args, new FileInputStream(input.toFile()));
+            ImageIO.write(
+                    graph.image(), "png", output.resolve(fileName + "_simplified.png").toFile());
+        }
 
         System.out.printf(
                 "Graph complete. Total %d nodes & %d relationships%n",
-                graph.nodes().size(), graph.relationships().size());
+                graph.nodeCount(), graph.relationshipCount());
         System.out.println("Files saved at: " + output);
         System.out.println(
                 "Copy the json content and paste/import at https://arrows.app or use the generated"
                         + " svg directly.");
 
-        var nodeOutput = output.resolve(fileName + "-nodes.csv").toAbsolutePath();
-        Files.writeString(nodeOutput, Output.nodesToCsv(graph));
-        var relOutput = output.resolve(fileName + "-rels.csv").toAbsolutePath();
-        Files.writeString(relOutput, Output.relationshipsToCsv(graph));
+        var gz = compress ? ".gz" : "";
+        var nodeOutput = output.resolve(fileName + "-nodes.csv" + gz).toAbsolutePath();
+        try (var writer = newWriter(nodeOutput)) {
+            Output.writeNodesCsv(graph, writer);
+        }
+        var relOutput = output.resolve(fileName + "-rels.csv" + gz).toAbsolutePath();
+        try (var writer = newWriter(relOutput)) {
+            Output.writeRelationshipsCsv(graph, writer);
+        }
 
-        var jsonOutput = output.resolve(fileName + "-graph.json").toAbsolutePath();
-        var json = Output.graphToJson(graph);
-        Files.writeString(jsonOutput, json);
+        var jsonOutput = output.resolve(fileName + "-graph.json" + gz).toAbsolutePath();
+        try (var writer = newWriter(jsonOutput)) {
+            Output.writeJson(graph, writer);
+        }
 
-        var svgOutput = output.resolve(fileName + "-graph.svg").toAbsolutePath();
-        Files.writeString(svgOutput, Output.graphToSvg(graph, transparentBg, outline));
+        var svgOutput =
+                output.resolve(fileName + (compress ? "-graph.svgz" : "-graph.svg"))
+                        .toAbsolutePath();
+        try (var writer = newWriter(svgOutput)) {
+            Output.writeSvg(graph, transparentBg, outline, compactSvg, writer);
+        }
+
+        if (neo4jImport) {
+            var neo4j = new Neo4jImport(output, fileName, importShards, compress);
+            neo4j.write(graph);
+            System.out.println("Import the neo4j-admin files with: " + neo4j.command());
+        }
+
+        if (cypher) {
+            var cypherOutput = output.resolve(fileName + "-graph.cypher" + gz).toAbsolutePath();
+            try (var writer = newWriter(cypherOutput)) {
+                Output.writeCypher(graph, writer);
+            }
+        }
+
+        if (graphFile) {
+            GraphFile.write(graph, output.resolve(fileName + ".i2g").toAbsolutePath());
+        }
 
         if (open) {
-            openOrCopyToClipboard(fileName, Output.arrowsUrl(json));
+            openOrCopyToClipboard(fileName, Output.arrowsUrl(graph));
         }
 
         return 0;
     }
 
+    // Compressed while it is written when asked to
+    private Writer newWriter(Path path) throws IOException {
+        if (!compress) {
+            return Files.newBufferedWriter(path);
+        }
+        return new BufferedWriter(
+                new OutputStreamWriter(
+                        new GZIPOutputStream(Files.newOutputStream(path), 1 << 16),
+                        StandardCharsets.UTF_8));
+    }
+
     void openOrCopyToClipboard(String fileName, String arrowsUrl) throws IOException {
 
         if (GraphicsEnvironment.isHeadless() || !Desktop.isDesktopSupported()) {
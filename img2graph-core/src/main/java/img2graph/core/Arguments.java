@@ -12,10 +12,27 @@ public record Arguments(
         int colorDepth,
         boolean simplifiedColors,
         boolean transparentBg,
-        boolean outline) {
+        boolean outline,
+        boolean exactMedianCut,
+        Long seed,
+        boolean poissonDisk,
+        boolean delaunay,
+        boolean compactSvg) {
+
+    /** Deepest median cut whose palette, with black and white added, still has 16 bit indices. */
+    public static final int MAX_COLOR_DEPTH = 15;
+
+    public Arguments {
+        if (colorDepth < 0 || colorDepth > MAX_COLOR_DEPTH) {
+            throw new IllegalArgumentException(
+                    "Color depth must be between 0 and " + MAX_COLOR_DEPTH + ", got " + colorDepth);
+        }
+    }
 
     Arguments() {
-        this(false, 3, 10, 2, 0, 20, 2, 1024, 4, false, false, false);
+        this(
+                false, 3, 10, 2, 0, 20, 2, 1024, 4, false, false, false, false, null, false, false,
+                false);
     }
 
     public static final Arguments DEFAULT_ARGUMENTS = new Arguments();
@@ -33,6 +50,11 @@ public record Arguments(
                 colorDepth,
                 simplifiedColors,
                 transparentBg,
-                outline);
+                outline,
+                exactMedianCut,
+                seed,
+                poissonDisk,
+                delaunay,
+                compactSvg);
     }
 }
@@ -0,0 +1,463 @@
+/*
+ * Adapted from delaunator, https://github.com/mapbox/delaunator
+ *
+ * ISC License
+ *
+ * Copyright (c) 2021, Mapbox
+ *
+ * Permission to use, copy, modify, and/or distribute this software for any purpose
+ * with or without fee is hereby granted, provided that the above copyright notice
+ * and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES WITH
+ * REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF MERCHANTABILITY AND
+ * FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY SPECIAL, DIRECT,
+ * INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES WHATSOEVER RESULTING FROM LOSS
+ * OF USE, DATA OR PROFITS, WHETHER IN AN ACTION OF CONTRACT, NEGLIGENCE OR OTHER
+ * TORTIOUS ACTION, ARISING OUT OF OR IN CONNECTION WITH THE USE OR PERFORMANCE OF
+ * THIS SOFTWARE.
+ */
+package img2graph.core;
+
+import java.util.Arrays;
+
+/**
+ * Delaunay triangulation of integer points, built by a sweep hull in O(n log n): points are added
+ * in order of their distance from a seed triangle, each one connected to the hull edges it can see
+ * and the new triangles flipped until they are Delaunay again. Orientation and circle tests are
+ * exact on the integer coordinates.
+ *
+ * <p>Only the neighbors of every point along the triangulation edges are kept. Collinear points are
+ * connected in order along their line.
+ */
+final class Delaunay {
+    private final int[] x;
+    private final int[] y;
+    private final int[] triangles;
+    private final int[] halfedges;
+    private int trianglesLen;
+
+    private final int hashSize;
+    private final int[] hullPrev;
+    private final int[] hullNext;
+    private final int[] hullTri;
+    private final int[] hullHash;
+    private int hullStart;
+    private double centerX;
+    private double centerY;
+    private int[] edgeStack = new int[512];
+
+    private int[] neighborStart;
+    private int[] neighborItems;
+
+    Delaunay(int[] x, int[] y) {
+        this.x = x;
+        this.y = y;
+        int n = x.length;
+        int maxTriangles = Math.max(2 * n - 5, 0);
+        this.triangles = new int[maxTriangles * 3];
+        this.halfedges = new int[maxTriangles * 3];
+        this.hashSize = (int) Math.ceil(Math.sqrt(n));
+        this.hullPrev = new int[n];
+        this.hullNext = new int[n];
+        this.hullTri = new int[n];
+        this.hullHash = new int[Math.max(1, hashSize)];
+        int[] line = triangulate();
+        collectNeighbors(line);
+    }
+
+    /** Stores the points connected to the given one in result and returns how many there are. */
+    int neighbors(int point, int[] result) {
+        int from = neighborStart[point];
+        int count = neighborStart[point + 1] - from;
+        System.arraycopy(neighborItems, from, result, 0, count);
+        return count;
+    }
+
+    // Fills the triangles, or returns the points in order along their line if they are collinear
+    private int[] triangulate() {
+        int n = x.length;
+        if (n < 3) {
+            return collinear();
+        }
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        double cx = (minX + maxX) / 2.0;
+        double cy = (minY + maxY) / 2.0;
+
+        // Seed triangle: the point closest to the center, the one closest to that and the one
+        // making the smallest circumcircle with both
+        int i0 = 0;
+        double minDist = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            double d = distSq(cx, cy, x[i], y[i]);
+            if (d < minDist) {
+                i0 = i;
+                minDist = d;
+            }
+        }
+        int i1 = -1;
+        minDist = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            double d = distSq(x[i0], y[i0], x[i], y[i]);
+            if (i != i0 && d < minDist && d > 0) {
+                i1 = i;
+                minDist = d;
+            }
+        }
+        if (i1 < 0) {
+            return collinear();
+        }
+        int i2 = -1;
+        double minRadius = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            if (i == i0 || i == i1 || orient(i0, i1, i) == 0) {
+                continue;
+            }
+            double r = circumradius(i0, i1, i);
+            if (r < minRadius) {
+                i2 = i;
+                minRadius = r;
+            }
+        }
+        if (i2 < 0) {
+            return collinear();
+        }
+        if (orient(i0, i1, i2) < 0) {
+            int i = i1;
+            i1 = i2;
+            i2 = i;
+        }
+        circumcenter(i0, i1, i2);
+
+        // Every point is outside of the hull built from the ones before it
+        int[] ids = new int[n];
+        double[] dists = new double[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+            dists[i] = distSq(centerX, centerY, x[i], y[i]);
+        }
+        quicksort(ids, dists, 0, n - 1);
+
+        hullStart = i0;
+        hullNext[i0] = hullPrev[i2] = i1;
+        hullNext[i1] = hullPrev[i0] = i2;
+        hullNext[i2] = hullPrev[i1] = i0;
+        hullTri[i0] = 0;
+        hullTri[i1] = 1;
+        hullTri[i2] = 2;
+        Arrays.fill(hullHash, -1);
+        hullHash[hashKey(i0)] = i0;
+        hullHash[hashKey(i1)] = i1;
+        hullHash[hashKey(i2)] = i2;
+        addTriangle(i0, i1, i2, -1, -1, -1);
+
+        for (int k = 0; k < n; k++) {
+            int i = ids[k];
+            if (i == i0 || i == i1 || i == i2) {
+                continue;
+            }
+            if (k > 0 && x[i] == x[ids[k - 1]] && y[i] == y[ids[k - 1]]) {
+                continue;
+            }
+
+            // A hull edge visible from the point, found through the angle hash
+            int start = 0;
+            for (int j = 0, key = hashKey(i); j < hashSize; j++) {
+                start = hullHash[(key + j) % hashSize];
+                if (start != -1 && start != hullNext[start]) {
+                    break;
+                }
+            }
+            start = hullPrev[start];
+            int e = start;
+            int q;
+            while (orient(i, e, q = hullNext[e]) >= 0) {
+                e = q;
+                if (e == start) {
+                    e = -1;
+                    break;
+                }
+            }
+            if (e == -1) {
+                continue;
+            }
+
+            int t = addTriangle(e, i, hullNext[e], -1, -1, hullTri[e]);
+            hullTri[i] = legalize(t + 2);
+            hullTri[e] = t;
+
+            // Walk forward and then backward along the hull, adding triangles while visible
+            int next = hullNext[e];
+            while (orient(i, next, q = hullNext[next]) < 0) {
+                t = addTriangle(next, i, q, hullTri[i], -1, hullTri[next]);
+                hullTri[i] = legalize(t + 2);
+                hullNext[next] = next;
+                next = q;
+            }
+            if (e == start) {
+                while (orient(i, q = hullPrev[e], e) < 0) {
+                    t = addTriangle(q, i, e, -1, hullTri[e], hullTri[q]);
+                    legalize(t + 2);
+                    hullTri[q] = t;
+                    hullNext[e] = e;
+                    e = q;
+                }
+            }
+
+            hullStart = hullPrev[i] = e;
+            hullNext[e] = hullPrev[next] = i;
+            hullNext[i] = next;
+            hullHash[hashKey(i)] = i;
+            hullHash[hashKey(e)] = e;
+        }
+        return null;
+    }
+
+    // Points sorted along the line they are all on
+    private int[] collinear() {
+        int n = x.length;
+        int[] ids = new int[n];
+        double[] dists = new double[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = i;
+            dists[i] = x[i] != x[0] ? x[i] - x[0] : y[i] - y[0];
+        }
+        if (n > 1) {
+            quicksort(ids, dists, 0, n - 1);
+        }
+        return ids;
+    }
+
+    // Flips the edge and the ones around it until they satisfy the Delaunay condition
+    private int legalize(int a) {
+        int i = 0;
+        int ar;
+        while (true) {
+            int b = halfedges[a];
+            int a0 = a - a % 3;
+            ar = a0 + (a + 2) % 3;
+            if (b == -1) {
+                if (i == 0) {
+                    break;
+                }
+                a = edgeStack[--i];
+                continue;
+            }
+            int b0 = b - b % 3;
+            int al = a0 + (a + 1) % 3;
+            int bl = b0 + (b + 2) % 3;
+            int p0 = triangles[ar];
+            int pr = triangles[a];
+            int pl = triangles[al];
+            int p1 = triangles[bl];
+            if (inCircle(p0, pr, pl, p1)) {
+                triangles[a] = p1;
+                triangles[b] = p0;
+                int hbl = halfedges[bl];
+                // Flipped on the other side of the hull, so the hull triangle moved
+                if (hbl == -1) {
+                    int e = hullStart;
+                    do {
+                        if (hullTri[e] == bl) {
+                            hullTri[e] = a;
+                            break;
+                        }
+                        e = hullPrev[e];
+                    } while (e != hullStart);
+                }
+                link(a, hbl);
+                link(b, halfedges[ar]);
+                link(ar, bl);
+                if (i == edgeStack.length) {
+                    edgeStack = Arrays.copyOf(edgeStack, i * 2);
+                }
+                edgeStack[i++] = b0 + (b + 1) % 3;
+            } else {
+                if (i == 0) {
+                    break;
+                }
+                a = edgeStack[--i];
+            }
+        }
+        return ar;
+    }
+
+    private int addTriangle(int i0, int i1, int i2, int a, int b, int c) {
+        int t = trianglesLen;
+        triangles[t] = i0;
+        triangles[t + 1] = i1;
+        triangles[t + 2] = i2;
+        link(t, a);
+        link(t + 1, b);
+        link(t + 2, c);
+        trianglesLen += 3;
+        return t;
+    }
+
+    private void link(int a, int b) {
+        halfedges[a] = b;
+        if (b != -1) {
+            halfedges[b] = a;
+        }
+    }
+
+    // Every triangulation edge, or every step along the line, in both directions
+    private void collectNeighbors(int[] line) {
+        int n = x.length;
+        int edges = line != null ? Math.max(0, n - 1) : trianglesLen;
+        int[] from = new int[edges];
+        int[] to = new int[edges];
+        int size = 0;
+        if (line != null) {
+            for (int i = 1; i < n; i++, size++) {
+                from[size] = line[i - 1];
+                to[size] = line[i];
+            }
+        } else {
+            for (int e = 0; e < trianglesLen; e++) {
+                if (halfedges[e] < e) {
+                    from[size] = triangles[e];
+                    to[size] = triangles[e % 3 == 2 ? e - 2 : e + 1];
+                    size++;
+                }
+            }
+        }
+        neighborStart = new int[n + 1];
+        for (int i = 0; i < size; i++) {
+            neighborStart[from[i] + 1]++;
+            neighborStart[to[i] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            neighborStart[i + 1] += neighborStart[i];
+        }
+        neighborItems = new int[2 * size];
+        int[] next = Arrays.copyOf(neighborStart, n);
+        for (int i = 0; i < size; i++) {
+            neighborItems[next[from[i]]++] = to[i];
+            neighborItems[next[to[i]]++] = from[i];
+        }
+    }
+
+    private int hashKey(int i) {
+        double dx = x[i] - centerX;
+        double dy = y[i] - centerY;
+        // Monotonic in the angle, from 0 to 1
+        double p = dx / (Math.abs(dx) + Math.abs(dy));
+        double angle = (dy > 0 ? 3 - p : 1 + p) / 4;
+        return (int) Math.floor(angle * hashSize) % hashSize;
+    }
+
+    // Positive if a, b and c are clockwise, negative if counter clockwise, 0 if collinear
+    private long orient(int a, int b, int c) {
+        return (long) (y[a] - y[c]) * (x[b] - x[c]) - (long) (x[a] - x[c]) * (y[b] - y[c]);
+    }
+
+    private boolean inCircle(int a, int b, int c, int p) {
+        long dx = x[a] - x[p];
+        long dy = y[a] - y[p];
+        long ex = x[b] - x[p];
+        long ey = y[b] - y[p];
+        long fx = x[c] - x[p];
+        long fy = y[c] - y[p];
+        long ap = dx * dx + dy * dy;
+        long bp = ex * ex + ey * ey;
+        long cp = fx * fx + fy * fy;
+        return dx * (ey * cp - bp * fy) - dy * (ex * cp - bp * fx) + ap * (ex * fy - ey * fx) < 0;
+    }
+
+    private double circumradius(int a, int b, int c) {
+        double dx = x[b] - x[a];
+        double dy = y[b] - y[a];
+        double ex = x[c] - x[a];
+        double ey = y[c] - y[a];
+        double bl = dx * dx + dy * dy;
+        double cl = ex * ex + ey * ey;
+        double d = 0.5 / (dx * ey - dy * ex);
+        double px = (ey * bl - dy * cl) * d;
+        double py = (dx * cl - ex * bl) * d;
+        return px * px + py * py;
+    }
+
+    private void circumcenter(int a, int b, int c) {
+        double dx = x[b] - x[a];
+        double dy = y[b] - y[a];
+        double ex = x[c] - x[a];
+        double ey = y[c] - y[a];
+        double bl = dx * dx + dy * dy;
+        double cl = ex * ex + ey * ey;
+        double d = 0.5 / (dx * ey - dy * ex);
+        centerX = x[a] + (ey * bl - dy * cl) * d;
+        centerY = y[a] + (dx * cl - ex * bl) * d;
+    }
+
+    private static double distSq(double ax, double ay, double bx, double by) {
+        double dx = ax - bx;
+        double dy = ay - by;
+        return dx * dx + dy * dy;
+    }
+
+    // Sorts the ids by their distance
+    private static void quicksort(int[] ids, double[] dists, int left, int right) {
+        if (right - left <= 20) {
+            for (int i = left + 1; i <= right; i++) {
+                int temp = ids[i];
+                double tempDist = dists[temp];
+                int j = i - 1;
+                while (j >= left && dists[ids[j]] > tempDist) {
+                    ids[j + 1] = ids[j--];
+                }
+                ids[j + 1] = temp;
+            }
+            return;
+        }
+        int median = (left + right) >> 1;
+        int i = left + 1;
+        int j = right;
+        swap(ids, median, i);
+        if (dists[ids[left]] > dists[ids[right]]) {
+            swap(ids, left, right);
+        }
+        if (dists[ids[i]] > dists[ids[right]]) {
+            swap(ids, i, right);
+        }
+        if (dists[ids[left]] > dists[ids[i]]) {
+            swap(ids, left, i);
+        }
+        int temp = ids[i];
+        double tempDist = dists[temp];
+        while (true) {
+            do {
+                i++;
+            } while (dists[ids[i]] < tempDist);
+            do {
+                j--;
+            } while (dists[ids[j]] > tempDist);
+            if (j < i) {
+                break;
+            }
+            swap(ids, i, j);
+        }
+        ids[left + 1] = ids[j];
+        ids[j] = temp;
+        if (right - i + 1 >= j - left) {
+            quicksort(ids, dists, i, right);
+            quicksort(ids, dists, left, j - 1);
+        } else {
+            quicksort(ids, dists, left, j - 1);
+            quicksort(ids, dists, i, right);
+        }
+    }
+
+    private static void swap(int[] ids, int i, int j) {
+        int temp = ids[i];
+        ids[i] = ids[j];
+        ids[j] = temp;
+    }
+}
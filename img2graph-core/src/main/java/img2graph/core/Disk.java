@@ -0,0 +1,37 @@
+package img2graph.core;
+
+import java.util.Arrays;
+
+/**
+ * Pixels within a radius of a center, as the half width of every row: row dy covers the columns
+ * from -halfWidth[|dy|] to halfWidth[|dy|]. Computed once per radius and shared, so free checks and
+ * carving only walk row spans instead of testing every pixel of the bounding square.
+ */
+final class Disk {
+    private static volatile int[][] halfWidths = new int[0][];
+
+    private Disk() {}
+
+    static int[] halfWidths(int radius) {
+        int[][] disks = halfWidths;
+        return radius < disks.length ? disks[radius] : grow(radius);
+    }
+
+    private static synchronized int[] grow(int radius) {
+        int[][] disks = halfWidths;
+        if (radius < disks.length) {
+            return disks[radius];
+        }
+        int size = disks.length;
+        disks = Arrays.copyOf(disks, Math.max(radius + 1, 2 * size));
+        for (int r = size; r < disks.length; r++) {
+            int[] rows = new int[r + 1];
+            for (int dy = 0; dy <= r; dy++) {
+                rows[dy] = (int) Math.sqrt(r * r - dy * dy);
+            }
+            disks[r] = rows;
+        }
+        halfWidths = disks;
+        return disks[radius];
+    }
+}
@@ -3,71 +3,193 @@ package img2graph.core;
 import img2graph.core.ImageReader.Color;
 import img2graph.core.ImageReader.Image;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Queue;
-import java.util.Set;
+import java.util.random.RandomGenerator;
+import java.util.stream.IntStream;
 
+/**
+ * Splits an image into 8-connected segments of the same simplified color. Bands of rows are
+ * labelled in parallel, each with its own range of provisional labels, and a union-find over those
+ * labels joins segments across the band borders afterwards. A segment is only described by its
+ * label and stats until its pixels are actually needed.
+ *
+ * <p>Labels are always joined under the lowest one and segments are ordered by their first pixel,
+ * so the result does not depend on the number of threads.
+ */
 class FlowFill {
+    private static final int TILE_ROWS = 128;
+
     private final Image img;
-    private final boolean[][] visited;
+    private final int[] labels;
+    private final int[] parent;
 
     FlowFill(Image img) {
         this.img = img;
-        this.visited = new boolean[img.width][img.height];
+        this.labels = new int[img.width * img.height];
+        this.parent = new int[labels.length];
     }
 
     List<Segment> getSegments() {
-        List<Segment> segments = new ArrayList<>();
-        for (int x = 0; x < img.width; x++) {
-            for (int y = 0; y < img.height; y++) {
-                if (!visited[x][y]) {
-                    Segment segment = new Segment(img.colors[x][y]);
-                    segments.add(segment);
-                    visit(x, y, segment);
-                }
+        int width = img.width;
+        int height = img.height;
+        int tiles = (height + TILE_ROWS - 1) / TILE_ROWS;
+        int[] counts = new int[tiles];
+        IntStream.range(0, tiles)
+                .parallel()
+                .forEach(
+                        tile ->
+                                counts[tile] =
+                                        label(
+                                                tile * TILE_ROWS,
+                                                Math.min(height, (tile + 1) * TILE_ROWS)));
+        for (int tile = 1; tile < tiles; tile++) {
+            joinSeam(tile * TILE_ROWS);
+        }
+
+        // Every label points to a lower one or itself, so resolving them in order gives dense
+        // segment labels, stored as -1 - label in place of the parent
+        int segments = 0;
+        for (int tile = 0; tile < tiles; tile++) {
+            int from = tile * TILE_ROWS * width;
+            for (int label = from; label < from + counts[tile]; label++) {
+                int up = parent[label];
+                parent[label] = up == label ? -1 - segments++ : parent[up];
             }
         }
-        return segments;
+        IntStream.range(0, tiles)
+                .parallel()
+                .forEach(
+                        tile -> {
+                            int to = Math.min(labels.length, (tile + 1) * TILE_ROWS * width);
+                            for (int i = tile * TILE_ROWS * width; i < to; i++) {
+                                labels[i] = -1 - parent[labels[i]];
+                            }
+                        });
+
+        int[] sizes = new int[segments];
+        int[] colors = new int[segments];
+        int[] minX = new int[segments];
+        int[] minY = new int[segments];
+        int[] maxX = new int[segments];
+        int[] maxY = new int[segments];
+        long[] first = new long[segments];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(first, Long.MAX_VALUE);
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                int label = labels[i];
+                sizes[label]++;
+                colors[label] = img.indices[i];
+                minX[label] = Math.min(minX[label], x);
+                minY[label] = Math.min(minY[label], y);
+                maxX[label] = Math.max(maxX[label], x);
+                maxY[label] = Math.max(maxY[label], y);
+                first[label] = Math.min(first[label], (long) x * height + y);
+            }
+        }
+
+        List<Segment> result = new ArrayList<>(segments);
+        for (int label = 0; label < segments; label++) {
+            result.add(
+                    new Segment(
+                            label,
+                            img.palette[colors[label]],
+                            sizes[label],
+                            minX[label],
+                            minY[label],
+                            maxX[label],
+                            maxY[label],
+                            labels,
+                            width));
+        }
+        // Same order as a column by column flood fill would find them in
+        result.sort(Comparator.comparingLong(segment -> first[segment.label]));
+        return result;
     }
 
-    private void visit(int x, int y, Segment segment) {
-        visitShallow(x, y, segment);
-        Queue<Coordinate> toVisit = new LinkedList<>();
-        toVisit.add(new Coordinate(x, y));
-
-        while (!toVisit.isEmpty()) {
-            Coordinate coordinate = toVisit.poll();
-            for (int i = -1; i <= 1; i++) {
-                for (int j = -1; j <= 1; j++) {
-                    if (!(i == 0 & j == 0)) {
-                        Coordinate shouldVisit =
-                                visitShallow(coordinate.x + i, coordinate.y + j, segment);
-                        if (shouldVisit != null) {
-                            toVisit.add(shouldVisit);
-                        }
+    int[] labels() {
+        return labels;
+    }
+
+    // Assigns provisional labels to the rows of one tile, starting at the offset of its first
+    // pixel, and records which of them touch. Returns the number of labels used.
+    private int label(int fromY, int toY) {
+        int width = img.width;
+        char[] indices = img.indices;
+        int from = fromY * width;
+        int next = from;
+        for (int y = fromY, i = from; y < toY; y++) {
+            for (int x = 0; x < width; x++, i++) {
+                char color = indices[i];
+                int label = -1;
+                if (x > 0 && indices[i - 1] == color) {
+                    label = union(label, labels[i - 1]);
+                }
+                if (y > fromY) {
+                    int up = i - width;
+                    if (x > 0 && indices[up - 1] == color) {
+                        label = union(label, labels[up - 1]);
+                    }
+                    if (indices[up] == color) {
+                        label = union(label, labels[up]);
                     }
+                    if (x < width - 1 && indices[up + 1] == color) {
+                        label = union(label, labels[up + 1]);
+                    }
+                }
+                if (label < 0) {
+                    parent[next] = next;
+                    label = next++;
                 }
+                labels[i] = label;
             }
         }
+        return next - from;
     }
 
-    private Coordinate visitShallow(int x, int y, Segment segment) {
-        if (x < 0 || x >= img.width || y < 0 || y >= img.height) {
-            return null;
+    // Joins the first row of a tile with the last row of the tile above it
+    private void joinSeam(int y) {
+        int width = img.width;
+        char[] indices = img.indices;
+        for (int x = 0, i = y * width; x < width; x++, i++) {
+            char color = indices[i];
+            int up = i - width;
+            if (x > 0 && indices[up - 1] == color) {
+                union(labels[i], labels[up - 1]);
+            }
+            if (indices[up] == color) {
+                union(labels[i], labels[up]);
+            }
+            if (x < width - 1 && indices[up + 1] == color) {
+                union(labels[i], labels[up + 1]);
+            }
+        }
+    }
+
+    // Joins both sets under the lowest label and returns it
+    private int union(int label, int other) {
+        int otherRoot = find(other);
+        if (label < 0) {
+            return otherRoot;
         }
-        if (visited[x][y]) {
-            return null;
+        int root = find(label);
+        if (root < otherRoot) {
+            parent[otherRoot] = root;
+            return root;
         }
-        if (segment.color.raw() != img.colors[x][y].raw()) {
-            return null;
+        parent[root] = otherRoot;
+        return otherRoot;
+    }
+
+    private int find(int label) {
+        while (parent[label] != label) {
+            parent[label] = parent[parent[label]];
+            label = parent[label];
         }
-        visited[x][y] = true;
-        Coordinate coordinate = new Coordinate(x, y);
-        segment.pixels.add(coordinate);
-        return coordinate;
+        return label;
     }
 
     record Coordinate(int x, int y) {
@@ -84,28 +206,193 @@ class FlowFill {
     }
 
     static class Segment {
+        final int label;
         final Color color;
-        final Set<Coordinate> pixels = new HashSet<>();
-        private List<Coordinate> rndCache;
-        private int rndIndex;
+        final int size;
+        final int minX;
+        final int minY;
+        final int maxX;
+        final int maxY;
+        private final int boxWidth;
+        private final int[] labels;
+        private final int width;
+        // Free pixels within the bounding box, one bit per pixel
+        private long[] free;
+        // Bounding box offsets of the pixels not drawn yet, shuffled as they are drawn
+        private int[] order;
+        private int remaining;
 
-        Segment(Color color) {
+        Segment(
+                int label,
+                Color color,
+                int size,
+                int minX,
+                int minY,
+                int maxX,
+                int maxY,
+                int[] labels,
+                int width) {
+            this.label = label;
             this.color = color;
+            this.size = size;
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.boxWidth = maxX - minX + 1;
+            this.labels = labels;
+            this.width = width;
+        }
+
+        boolean contains(int x, int y) {
+            if (x < minX || x > maxX || y < minY || y > maxY) {
+                return false;
+            }
+            int pixel = (y - minY) * boxWidth + x - minX;
+            return (free()[pixel >>> 6] & 1L << pixel) != 0;
+        }
+
+        /**
+         * Largest radius up to limit for which every pixel within it of the center is free, or -1
+         * if the center is taken. Grows the disk one ring at a time, so every pixel is only looked
+         * at once.
+         */
+        int freeRadius(int centerX, int centerY, int limit) {
+            if (!contains(centerX, centerY)) {
+                return -1;
+            }
+            int radius = 0;
+            while (radius < limit && isRingFree(centerX, centerY, radius + 1)) {
+                radius++;
+            }
+            return radius;
         }
 
-        Coordinate randomPixel() {
-            if (rndCache == null) {
-                rndCache = new ArrayList<>(pixels);
-                Collections.shuffle(rndCache);
-                rndIndex = rndCache.size();
+        // Whether the pixels within radius of the center, but not within radius - 1, are free
+        private boolean isRingFree(int centerX, int centerY, int radius) {
+            int[] outer = Disk.halfWidths(radius);
+            int[] inner = Disk.halfWidths(radius - 1);
+            if (!isFree(centerY - radius, centerX, centerX)
+                    || !isFree(centerY + radius, centerX, centerX)) {
+                return false;
             }
-            while (rndIndex > 0) {
-                Coordinate coordinate = rndCache.get(--rndIndex);
-                if (pixels.contains(coordinate)) {
-                    return coordinate;
+            for (int dy = 1 - radius; dy < radius; dy++) {
+                int y = centerY + dy;
+                int from = inner[Math.abs(dy)] + 1;
+                int to = outer[Math.abs(dy)];
+                if (from <= to
+                        && !(isFree(y, centerX + from, centerX + to)
+                                && isFree(y, centerX - to, centerX - from))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Whether every pixel of a row from fromX to toX is free
+        private boolean isFree(int y, int fromX, int toX) {
+            if (y < minY || y > maxY || fromX < minX || toX > maxX) {
+                return false;
+            }
+            int row = (y - minY) * boxWidth - minX;
+            long[] free = free();
+            int from = row + fromX;
+            int to = row + toX;
+            long first = -1L << from;
+            long last = -1L >>> ~to;
+            int fromWord = from >>> 6;
+            int toWord = to >>> 6;
+            if (fromWord == toWord) {
+                return (free[fromWord] & first & last) == (first & last);
+            }
+            if ((free[fromWord] & first) != first || (free[toWord] & last) != last) {
+                return false;
+            }
+            for (int word = fromWord + 1; word < toWord; word++) {
+                if (free[word] != -1L) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Takes every pixel within radius of the center
+        void carve(int centerX, int centerY, int radius) {
+            int[] halfWidths = Disk.halfWidths(radius);
+            long[] free = free();
+            for (int y = Math.max(minY, centerY - radius);
+                    y <= Math.min(maxY, centerY + radius);
+                    y++) {
+                int halfWidth = halfWidths[Math.abs(y - centerY)];
+                int fromX = Math.max(minX, centerX - halfWidth);
+                int toX = Math.min(maxX, centerX + halfWidth);
+                if (fromX > toX) {
+                    continue;
+                }
+                int row = (y - minY) * boxWidth - minX;
+                int from = row + fromX;
+                int to = row + toX;
+                long first = -1L << from;
+                long last = -1L >>> ~to;
+                int fromWord = from >>> 6;
+                int toWord = to >>> 6;
+                if (fromWord == toWord) {
+                    free[fromWord] &= ~(first & last);
+                    continue;
+                }
+                free[fromWord] &= ~first;
+                for (int word = fromWord + 1; word < toWord; word++) {
+                    free[word] = 0;
+                }
+                free[toWord] &= ~last;
+            }
+        }
+
+        // A random pixel that is still free, as an offset within the bounding box, or -1
+        int randomPixel(RandomGenerator random) {
+            if (order == null) {
+                long[] free = free();
+                order = new int[size];
+                for (int word = 0; word < free.length; word++) {
+                    for (long bits = free[word]; bits != 0; bits &= bits - 1) {
+                        order[remaining++] = word << 6 | Long.numberOfTrailingZeros(bits);
+                    }
+                }
+            }
+            while (remaining > 0) {
+                int i = random.nextInt(remaining);
+                int pixel = order[i];
+                order[i] = order[--remaining];
+                order[remaining] = pixel;
+                if ((free[pixel >>> 6] & 1L << pixel) != 0) {
+                    return pixel;
+                }
+            }
+            return -1;
+        }
+
+        int x(int pixel) {
+            return minX + pixel % boxWidth;
+        }
+
+        int y(int pixel) {
+            return minY + pixel / boxWidth;
+        }
+
+        // Collected from the label map on first use
+        private long[] free() {
+            if (free == null) {
+                int boxHeight = maxY - minY + 1;
+                free = new long[(boxWidth * boxHeight + 63) >>> 6];
+                for (int y = minY, pixel = 0; y <= maxY; y++) {
+                    for (int x = minX, i = y * width + minX; x <= maxX; x++, i++, pixel++) {
+                        if (labels[i] == label) {
+                            free[pixel >>> 6] |= 1L << pixel;
+                        }
+                    }
                 }
             }
-            return null;
+            return free;
         }
     }
 }
@@ -1,15 +1,223 @@
 package img2graph.core;
 
 import java.awt.image.BufferedImage;
-import java.util.Collections;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.RandomAccess;
 
-public record Graph(BufferedImage image, List<Node> nodes, List<Relationship> relationships) {
+/**
+ * Nodes and relationships stored as columns of ints, indexed by their id. The {@link Node} and
+ * {@link Relationship} records are only created when they are read through {@link #nodes()} or
+ * {@link #relationships()}.
+ *
+ * <p>Graphs are equal when they have the same image and the same columns.
+ */
+public final class Graph {
+    private final BufferedImage image;
+    private final int width;
+    private final int height;
+    private final int[] x;
+    private final int[] y;
+    private final int[] radius;
+    private final int[] rgb;
+    private final int[] from;
+    private final int[] to;
 
-    public Graph {
-        nodes = Collections.unmodifiableList(nodes);
-        relationships = Collections.unmodifiableList(relationships);
+    /**
+     * A graph of the given nodes and relationships. Relationships refer to nodes by id, and nodes
+     * get their position in the list as their id. The image may be null, which gives a size of 0.
+     */
+    public Graph(BufferedImage image, List<Node> nodes, List<Relationship> relationships) {
+        this(
+                image,
+                image == null ? 0 : image.getWidth(),
+                image == null ? 0 : image.getHeight(),
+                nodes,
+                relationships);
+    }
+
+    /**
+     * A graph of the given nodes and relationships with only the size of an image, like one read
+     * from a {@link GraphFile}.
+     */
+    public Graph(int width, int height, List<Node> nodes, List<Relationship> relationships) {
+        this(null, width, height, nodes, relationships);
+    }
+
+    private Graph(
+            BufferedImage image,
+            int width,
+            int height,
+            List<Node> nodes,
+            List<Relationship> relationships) {
+        this(
+                image,
+                width,
+                height,
+                nodes.stream().mapToInt(node -> node.coordinate().x()).toArray(),
+                nodes.stream().mapToInt(node -> node.coordinate().y()).toArray(),
+                nodes.stream().mapToInt(Node::radius).toArray(),
+                nodes.stream().mapToInt(node -> node.color().raw()).toArray(),
+                new int[relationships.size()],
+                new int[relationships.size()]);
+        Map<Integer, Integer> index = new HashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            index.put(nodes.get(i).id(), i);
+        }
+        for (int rel = 0; rel < relationships.size(); rel++) {
+            from[rel] = indexOf(index, relationships.get(rel).from());
+            to[rel] = indexOf(index, relationships.get(rel).to());
+        }
+    }
+
+    Graph(BufferedImage image, int[] x, int[] y, int[] radius, int[] rgb, int[] from, int[] to) {
+        this(image, image.getWidth(), image.getHeight(), x, y, radius, rgb, from, to);
+    }
+
+    // Read back from a GraphFile, which only knows the size of the image
+    Graph(int width, int height, int[] x, int[] y, int[] radius, int[] rgb, int[] from, int[] to) {
+        this(null, width, height, x, y, radius, rgb, from, to);
+    }
+
+    private Graph(
+            BufferedImage image,
+            int width,
+            int height,
+            int[] x,
+            int[] y,
+            int[] radius,
+            int[] rgb,
+            int[] from,
+            int[] to) {
+        this.image = image;
+        this.width = width;
+        this.height = height;
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+        this.rgb = rgb;
+        this.from = from;
+        this.to = to;
+    }
+
+    /** The simplified image, or null for a graph read from a {@link GraphFile}. */
+    public BufferedImage image() {
+        return image;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    public int nodeCount() {
+        return x.length;
+    }
+
+    public int x(int node) {
+        return x[node];
+    }
+
+    public int y(int node) {
+        return y[node];
+    }
+
+    public int radius(int node) {
+        return radius[node];
+    }
+
+    /** Color of a node as packed ARGB. */
+    public int rgb(int node) {
+        return rgb[node];
+    }
+
+    public int relationshipCount() {
+        return from.length;
+    }
+
+    public int from(int relationship) {
+        return from[relationship];
+    }
+
+    public int to(int relationship) {
+        return to[relationship];
+    }
+
+    public List<Node> nodes() {
+        return new View<>(x.length) {
+            @Override
+            public Node get(int index) {
+                return node(index);
+            }
+        };
+    }
+
+    public List<Relationship> relationships() {
+        return new View<>(from.length) {
+            @Override
+            public Relationship get(int index) {
+                return new Relationship(node(from[index]), node(to[index]), index);
+            }
+        };
+    }
+
+    private Node node(int id) {
+        return new Node(
+                new FlowFill.Coordinate(x[id], y[id]),
+                radius[id],
+                id,
+                new ImageReader.Color(rgb[id]));
+    }
+
+    private static int indexOf(Map<Integer, Integer> index, Node node) {
+        Integer i = index.get(node.id());
+        if (i == null) {
+            throw new IllegalArgumentException("Relationship to a node not in the graph: " + node);
+        }
+        return i;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Graph that
+                && Objects.equals(image, that.image)
+                && width == that.width
+                && height == that.height
+                && Arrays.equals(x, that.x)
+                && Arrays.equals(y, that.y)
+                && Arrays.equals(radius, that.radius)
+                && Arrays.equals(rgb, that.rgb)
+                && Arrays.equals(from, that.from)
+                && Arrays.equals(to, that.to);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = Objects.hash(image, width, height);
+        for (int[] column : new int[][] {x, y, radius, rgb, from, to}) {
+            hash = 31 * hash + Arrays.hashCode(column);
+        }
+        return hash;
+    }
+
+    private abstract static class View<T> extends AbstractList<T> implements RandomAccess {
+        private final int size;
+
+        View(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
     }
 
     public record Node(
@@ -20,20 +228,18 @@ public record Graph(BufferedImage image, List<Node> nodes, List<Relationship> re
         }
     }
 
-    // Undirected relationship to avoid duplicates
+    // Undirected relationship to avoid duplicates, nodes are told apart by their id
     public record Relationship(Node from, Node to, int id) {
         @Override
         public boolean equals(Object o) {
-            Relationship that = (Relationship) o;
-            return Objects.equals(from, that.from) && Objects.equals(to, that.to)
-                    || Objects.equals(from, that.to) && Objects.equals(to, that.from);
+            return o instanceof Relationship that
+                    && (from.id() == that.from.id() && to.id() == that.to.id()
+                            || from.id() == that.to.id() && to.id() == that.from.id());
         }
 
         @Override
         public int hashCode() {
-            int fH = Objects.hash(from);
-            int tH = Objects.hash(to);
-            return Objects.hash(Math.min(fH, tH), Math.max(fH, tH));
+            return 31 * Math.min(from.id(), to.id()) + Math.max(from.id(), to.id());
         }
     }
 }
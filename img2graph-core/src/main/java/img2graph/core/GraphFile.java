@@ -0,0 +1,208 @@
+package img2graph.core;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A binary file holding the columns of a {@link Graph}, to store a graph and read it back without
+ * running the image pipeline again.
+ *
+ * <p>After a header with the image size and the counts, node colors are written as a palette of
+ * ARGB ints. Then come the node columns: x and y as the zigzag encoded varint difference to the
+ * previous node, the radius as a varint and the palette index as a varint. The relationship columns
+ * follow, the start as the difference to the previous start and the end as the difference to its
+ * start. Nodes and relationships of a segment are next to each other, so most values fit in one or
+ * two bytes.
+ *
+ * <p>Graphs read back have no {@link Graph#image() image}, only its size.
+ */
+public final class GraphFile {
+    private static final int MAGIC = 0x49324701; // "I2G" and the version
+
+    private GraphFile() {}
+
+    public static void write(Graph graph, Path path) throws IOException {
+        int[] palette = palette(graph);
+        try (var channel =
+                FileChannel.open(
+                        path,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE)) {
+            var out = new Out(channel);
+            out.putInt(MAGIC);
+            out.putInt(graph.width());
+            out.putInt(graph.height());
+            out.putInt(graph.nodeCount());
+            out.putInt(graph.relationshipCount());
+            out.putInt(palette.length);
+            for (int rgb : palette) {
+                out.putInt(rgb);
+            }
+            for (int node = 0, previous = 0; node < graph.nodeCount(); node++) {
+                out.putSigned(graph.x(node) - previous);
+                previous = graph.x(node);
+            }
+            for (int node = 0, previous = 0; node < graph.nodeCount(); node++) {
+                out.putSigned(graph.y(node) - previous);
+                previous = graph.y(node);
+            }
+            for (int node = 0; node < graph.nodeCount(); node++) {
+                out.putUnsigned(graph.radius(node));
+            }
+            for (int node = 0; node < graph.nodeCount(); node++) {
+                out.putUnsigned(Arrays.binarySearch(palette, graph.rgb(node)));
+            }
+            for (int rel = 0, previous = 0; rel < graph.relationshipCount(); rel++) {
+                out.putSigned(graph.from(rel) - previous);
+                previous = graph.from(rel);
+            }
+            for (int rel = 0; rel < graph.relationshipCount(); rel++) {
+                out.putSigned(graph.to(rel) - graph.from(rel));
+            }
+            out.flush();
+        }
+    }
+
+    public static Graph read(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < 24 || in.getInt() != MAGIC) {
+                throw new IOException("Not an img2graph file: " + path);
+            }
+            int width = in.getInt();
+            int height = in.getInt();
+            int nodeCount = in.getInt();
+            int relCount = in.getInt();
+            int paletteSize = in.getInt();
+            // Every value takes at least a byte, which keeps a broken header from allocating a lot
+            if (width < 0
+                    || height < 0
+                    || nodeCount < 0
+                    || relCount < 0
+                    || paletteSize < 0
+                    || 4L * paletteSize + 4L * nodeCount + 2L * relCount > in.remaining()) {
+                throw new IOException("Corrupt img2graph file: " + path);
+            }
+            int[] palette = new int[paletteSize];
+            for (int i = 0; i < paletteSize; i++) {
+                palette[i] = in.getInt();
+            }
+            int[] x = new int[nodeCount];
+            int[] y = new int[nodeCount];
+            int[] radius = new int[nodeCount];
+            int[] rgb = new int[nodeCount];
+            int[] from = new int[relCount];
+            int[] to = new int[relCount];
+            for (int node = 0, previous = 0; node < nodeCount; node++) {
+                previous = x[node] = previous + getSigned(in);
+            }
+            for (int node = 0, previous = 0; node < nodeCount; node++) {
+                previous = y[node] = previous + getSigned(in);
+            }
+            for (int node = 0; node < nodeCount; node++) {
+                radius[node] = getUnsigned(in);
+            }
+            for (int node = 0; node < nodeCount; node++) {
+                int index = getUnsigned(in);
+                if (Integer.compareUnsigned(index, paletteSize) >= 0) {
+                    throw new IOException("Corrupt img2graph file: " + path);
+                }
+                rgb[node] = palette[index];
+            }
+            for (int rel = 0, previous = 0; rel < relCount; rel++) {
+                previous = from[rel] = previous + getSigned(in);
+            }
+            for (int rel = 0; rel < relCount; rel++) {
+                to[rel] = from[rel] + getSigned(in);
+                if (Integer.compareUnsigned(from[rel], nodeCount) >= 0
+                        || Integer.compareUnsigned(to[rel], nodeCount) >= 0) {
+                    throw new IOException("Corrupt img2graph file: " + path);
+                }
+            }
+            return new Graph(width, height, x, y, radius, rgb, from, to);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated img2graph file: " + path, e);
+        }
+    }
+
+    // Distinct node colors, sorted to look up their index
+    private static int[] palette(Graph graph) {
+        int[] colors = new int[graph.nodeCount()];
+        for (int node = 0; node < colors.length; node++) {
+            colors[node] = graph.rgb(node);
+        }
+        Arrays.sort(colors);
+        int size = 0;
+        for (int i = 0; i < colors.length; i++) {
+            if (i == 0 || colors[i] != colors[i - 1]) {
+                colors[size++] = colors[i];
+            }
+        }
+        return Arrays.copyOf(colors, size);
+    }
+
+    private static int getSigned(ByteBuffer in) throws IOException {
+        int zigzag = getUnsigned(in);
+        return zigzag >>> 1 ^ -(zigzag & 1);
+    }
+
+    // Seven bits per byte, lowest first, with the high bit set on all but the last byte
+    private static int getUnsigned(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint longer than five bytes");
+    }
+
+    private static final class Out {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+        Out(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putSigned(int value) throws IOException {
+            putUnsigned(value << 1 ^ value >> 31);
+        }
+
+        void putUnsigned(int value) throws IOException {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer.put((byte) (value & 0x7F | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
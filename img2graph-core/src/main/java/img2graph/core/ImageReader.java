@@ -1,84 +1,163 @@
 package img2graph.core;
 
-import java.awt.Graphics;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.stream.ImageInputStream;
 
 class ImageReader {
     private static final Color WHITE = new Color(0xFFFFFFFF);
     private static final Color BLACK = new Color(0xFF000000);
+    // Rows per unit of work when passes over the image are split across threads
+    private static final int BAND_ROWS = 64;
 
     private final int targetRes;
     private final int colorDepth;
+    private final boolean exactMedianCut;
 
-    ImageReader(int targetRes, int colorDepth) {
+    ImageReader(int targetRes, int colorDepth, boolean exactMedianCut) {
         this.targetRes = targetRes;
         this.colorDepth = colorDepth;
+        this.exactMedianCut = exactMedianCut;
     }
 
     Image readImage(InputStream stream) {
-        try {
-            BufferedImage image = alphaToWhite(resizeImage(ImageIO.read(stream), targetRes));
-            return simplifyColor(image);
+        try (ImageInputStream input = ImageIO.createImageInputStream(stream)) {
+            BufferedImage image = resizeImage(decode(input), targetRes);
+            return simplifyColor(image, pixels(image));
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
-    private Image simplifyColor(BufferedImage image) {
-
-        Map<Integer, ColorBucket> colorCount = new HashMap<>();
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                int rawColor = image.getRGB(x, y);
-                colorCount.computeIfAbsent(rawColor, ColorBucket::new).add(rawColor);
+    // Images much larger than the target resolution are subsampled while decoding, so only a
+    // small image has to be held in memory for the final resize
+    private BufferedImage decode(ImageInputStream input) throws IOException {
+        Iterator<javax.imageio.ImageReader> readers =
+                input == null ? Collections.emptyIterator() : ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format");
+        }
+        javax.imageio.ImageReader reader = readers.next();
+        try {
+            reader.setInput(input, true, true);
+            int size = Math.max(reader.getWidth(0), reader.getHeight(0));
+            // Keep twice the target resolution for the resize to average over
+            int subsampling = size / (2 * targetRes);
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
             }
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
         }
+    }
+
+    private Image simplifyColor(BufferedImage image, int[] pixels) {
+        int bandSize = BAND_ROWS * image.getWidth();
+        int bands = (pixels.length + bandSize - 1) / bandSize;
 
-        List<ColorBucket> trueColors =
-                colorCount.values().stream()
-                        .sorted((o1, o2) -> Integer.compare(o2.size, o1.size))
-                        .limit(10)
-                        .toList();
+        ColorHistogram colorCount =
+                IntStream.range(0, bands)
+                        .parallel()
+                        .mapToObj(
+                                band ->
+                                        flattenAndCount(
+                                                pixels,
+                                                band * bandSize,
+                                                Math.min(pixels.length, (band + 1) * bandSize)))
+                        .reduce(ColorHistogram::merge)
+                        .orElseGet(ColorHistogram::new);
+        long[] histogram = colorCount.entries();
+        long[] trueColors = mostCommon(histogram, 10);
 
         List<Color> palette;
-        if (trueColors.size() < 10 || trueColors.get(trueColors.size() - 1).size < 100) {
-            palette = trueColors.stream().map(cb -> new Color(cb.rgb)).collect(Collectors.toList());
+        if (trueColors.length < 10 || (int) trueColors[trueColors.length - 1] < 100) {
+            palette = new ArrayList<>();
+            for (long trueColor : trueColors) {
+                palette.add(new Color(histogramRgb(trueColor)));
+            }
         } else {
-            palette = medianCut(image);
+            palette = exactMedianCut ? medianCut(pixels) : medianCut(histogram);
             palette.add(BLACK);
             palette.add(WHITE);
         }
         palette = mergeIndistinguishableColors(palette);
         Image img =
-                new Image(image, resizeImage(image, targetRes), new Color(trueColors.get(0).rgb));
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                Color rawColor = new Color(image.getRGB(x, y));
-                Color simplified = getClosest(palette, new Color(rawColor.raw));
-                img.colors[x][y] = simplified;
-                image.setRGB(x, y, simplified.raw);
-            }
-        }
+                new Image(
+                        image,
+                        pixels.clone(),
+                        palette.toArray(new Color[0]),
+                        new Color(histogramRgb(trueColors[0])));
+        PaletteLookup lookup = new PaletteLookup(img.palette);
+        int[] paletteRgb = Arrays.stream(img.palette).mapToInt(Color::raw).toArray();
+        IntStream.range(0, bands)
+                .parallel()
+                .forEach(
+                        band -> {
+                            int to = Math.min(pixels.length, (band + 1) * bandSize);
+                            for (int i = band * bandSize; i < to; i++) {
+                                int index = lookup.closest(pixels[i]);
+                                img.indices[i] = (char) index;
+                                pixels[i] = paletteRgb[index];
+                            }
+                        });
         // addDebugPalette(image, palette);
         return img;
     }
 
+    // Flattens transparency onto white and counts the resulting colors of one band of rows
+    private static ColorHistogram flattenAndCount(int[] pixels, int from, int to) {
+        ColorHistogram histogram = new ColorHistogram();
+        for (int i = from; i < to; i++) {
+            int argb = pixels[i];
+            boolean visible = (argb & 0xFF000000) >>> 24 > 230;
+            argb = visible ? argb | 0xFF000000 : 0xFFFFFFFF;
+            pixels[i] = argb;
+            histogram.add(argb, 1);
+        }
+        return histogram;
+    }
+
+    // Histogram entries with the highest pixel count, ties are kept in the order of the histogram
+    private static long[] mostCommon(long[] histogram, int limit) {
+        long[] top = new long[Math.min(limit, histogram.length)];
+        int size = 0;
+        for (long entry : histogram) {
+            int i = size;
+            while (i > 0 && (int) entry > (int) top[i - 1]) {
+                if (i < top.length) {
+                    top[i] = top[i - 1];
+                }
+                i--;
+            }
+            if (i < top.length) {
+                top[i] = entry;
+                size = Math.min(size + 1, top.length);
+            }
+        }
+        return top;
+    }
+
     private List<Color> mergeIndistinguishableColors(List<Color> palette) {
         List<Color> mergedPalette = new ArrayList<>();
         for (int i = 0; i < palette.size(); i++) {
             Color color = palette.get(i);
             if (color != null) {
-                ColorBucket bucket = new ColorBucket(0);
+                ColorBucket bucket = new ColorBucket();
                 for (int j = 0; j < palette.size(); j++) {
                     Color otherColor = palette.get(j);
                     if (otherColor != null && color.distSq(otherColor) < 10) {
@@ -92,29 +171,47 @@ class ImageReader {
         return mergedPalette;
     }
 
-    private List<Color> medianCut(BufferedImage image) {
-        List<Color> colors = new ArrayList<>(image.getWidth() * image.getHeight());
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                Color color = new Color(image.getRGB(x, y));
-                if (!BLACK.equals(color) && !WHITE.equals(color)) {
-                    colors.add(color);
-                }
+    private List<Color> medianCut(int[] pixels) {
+        int[] colors = new int[pixels.length];
+        int size = 0;
+        for (int argb : pixels) {
+            if (argb != BLACK.raw && argb != WHITE.raw) {
+                colors[size++] = argb;
             }
         }
-        return medianCut(colors, colorDepth);
+        List<Color> result = new ArrayList<>();
+        medianCut(colors, 0, size, colorDepth, new int[size], result);
+        return result;
     }
 
-    private static List<Color> medianCut(List<Color> colors, int depth) {
-        if (colors.isEmpty()) {
-            return List.of();
+    // Median cut over the distinct colors weighted by their pixel count. Gives the same splits as
+    // running it on every pixel, only colors sharing the split channel value may be cut in a
+    // different order.
+    private List<Color> medianCut(long[] histogram) {
+        long[] colors = new long[histogram.length];
+        int size = 0;
+        for (long entry : histogram) {
+            int rgb = histogramRgb(entry);
+            if (rgb != BLACK.raw && rgb != WHITE.raw) {
+                colors[size++] = entry;
+            }
+        }
+        List<Color> result = new ArrayList<>();
+        medianCut(Arrays.copyOf(colors, size), colorDepth, result);
+        return result;
+    }
+
+    private static void medianCut(long[] histogram, int depth, List<Color> into) {
+        if (histogram.length == 0) {
+            return;
         }
         if (depth == 0) {
-            ColorBucket bucket = new ColorBucket(0);
-            for (Color color : colors) {
-                bucket.add(color.raw);
+            ColorBucket bucket = new ColorBucket();
+            for (long entry : histogram) {
+                bucket.add(histogramRgb(entry), (int) entry);
             }
-            return List.of(new Color(bucket.getAverage()));
+            into.add(new Color(bucket.getAverage()));
+            return;
         }
         int[][] ranges = {
             {Integer.MAX_VALUE, Integer.MIN_VALUE},
@@ -122,37 +219,123 @@ class ImageReader {
             {Integer.MAX_VALUE, Integer.MIN_VALUE}
         };
 
-        for (Color color : colors) {
-            range(ranges[0], color.r);
-            range(ranges[1], color.g);
-            range(ranges[2], color.b);
+        long pixels = 0;
+        for (long entry : histogram) {
+            int rgb = histogramRgb(entry);
+            range(ranges[0], (rgb & 0xFF0000) >> 16);
+            range(ranges[1], (rgb & 0x00FF00) >> 8);
+            range(ranges[2], rgb & 0x0000FF);
+            pixels += (int) entry;
         }
 
         int dr = ranges[0][1] - ranges[0][0];
         int dg = ranges[1][1] - ranges[1][0];
         int db = ranges[2][1] - ranges[2][0];
         if (dr > dg && dr > db) {
-            colors.sort(Comparator.comparingInt(Color::r));
+            sortByChannel(histogram, 16);
         } else if (dg > db) {
-            colors.sort(Comparator.comparingInt(Color::g));
+            sortByChannel(histogram, 8);
         } else {
-            colors.sort(Comparator.comparingInt(Color::b));
+            sortByChannel(histogram, 0);
         }
-        List<Color> result = new ArrayList<>();
-        result.addAll(medianCut(colors.subList(0, colors.size() / 2), depth - 1));
-        result.addAll(medianCut(colors.subList(colors.size() / 2, colors.size()), depth - 1));
-        return result;
+
+        // The color at the median is shared between both halves by its pixel count
+        long half = pixels / 2;
+        long before = 0;
+        int median = 0;
+        while (before + (int) histogram[median] <= half) {
+            before += (int) histogram[median++];
+        }
+        long leftCount = half - before;
+        long rightCount = (int) histogram[median] - leftCount;
+        long[] left = Arrays.copyOf(histogram, leftCount > 0 ? median + 1 : median);
+        if (leftCount > 0) {
+            left[median] = histogram[median] & 0xFFFFFFFF00000000L | leftCount;
+        }
+        long[] right = Arrays.copyOfRange(histogram, median, histogram.length);
+        right[0] = histogram[median] & 0xFFFFFFFF00000000L | rightCount;
+        medianCut(left, depth - 1, into);
+        medianCut(right, depth - 1, into);
+    }
+
+    private static int histogramRgb(long entry) {
+        return 0xFF000000 | (int) (entry >>> 32);
+    }
+
+    private static void sortByChannel(long[] histogram, int shift) {
+        int[] offsets = new int[257];
+        for (long entry : histogram) {
+            offsets[((int) (entry >>> (32 + shift)) & 0xFF) + 1]++;
+        }
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+        long[] sorted = new long[histogram.length];
+        for (long entry : histogram) {
+            sorted[offsets[(int) (entry >>> (32 + shift)) & 0xFF]++] = entry;
+        }
+        System.arraycopy(sorted, 0, histogram, 0, histogram.length);
     }
 
-    private static BufferedImage alphaToWhite(BufferedImage image) {
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                int argb = image.getRGB(x, y);
-                boolean visible = (argb & 0xFF000000) >>> 24 > 230;
-                image.setRGB(x, y, visible ? argb | 0xFF000000 : 0xFFFFFFFF);
+    private static void medianCut(
+            int[] colors, int from, int to, int depth, int[] scratch, List<Color> into) {
+        if (from == to) {
+            return;
+        }
+        if (depth == 0) {
+            ColorBucket bucket = new ColorBucket();
+            for (int i = from; i < to; i++) {
+                bucket.add(colors[i]);
             }
+            into.add(new Color(bucket.getAverage()));
+            return;
+        }
+        int[][] ranges = {
+            {Integer.MAX_VALUE, Integer.MIN_VALUE},
+            {Integer.MAX_VALUE, Integer.MIN_VALUE},
+            {Integer.MAX_VALUE, Integer.MIN_VALUE}
+        };
+
+        for (int i = from; i < to; i++) {
+            int argb = colors[i];
+            range(ranges[0], (argb & 0xFF0000) >> 16);
+            range(ranges[1], (argb & 0x00FF00) >> 8);
+            range(ranges[2], argb & 0x0000FF);
         }
-        return image;
+
+        int dr = ranges[0][1] - ranges[0][0];
+        int dg = ranges[1][1] - ranges[1][0];
+        int db = ranges[2][1] - ranges[2][0];
+        if (dr > dg && dr > db) {
+            sortByChannel(colors, from, to, 16, scratch);
+        } else if (dg > db) {
+            sortByChannel(colors, from, to, 8, scratch);
+        } else {
+            sortByChannel(colors, from, to, 0, scratch);
+        }
+        int median = from + (to - from) / 2;
+        medianCut(colors, from, median, depth - 1, scratch, into);
+        medianCut(colors, median, to, depth - 1, scratch, into);
+    }
+
+    // Stable counting sort on one 8 bit channel, so equal channel values keep raster order
+    private static void sortByChannel(int[] colors, int from, int to, int shift, int[] scratch) {
+        int[] offsets = new int[257];
+        for (int i = from; i < to; i++) {
+            offsets[((colors[i] >> shift) & 0xFF) + 1]++;
+        }
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] += offsets[i - 1];
+        }
+        for (int i = from; i < to; i++) {
+            scratch[from + offsets[(colors[i] >> shift) & 0xFF]++] = colors[i];
+        }
+        System.arraycopy(scratch, from, colors, from, to - from);
+    }
+
+    // Backing array of an ARGB image created by us, row-major with a stride of its width
+    private static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
     }
 
     private static void range(int[] range, int color) {
@@ -191,52 +374,151 @@ class ImageReader {
         }
     }
 
-    private static Color getClosest(List<Color> palette, Color rawColor) {
-        Color closest = rawColor;
-        int dist = Integer.MAX_VALUE;
-        for (Color color : palette) {
-            if (color.raw == rawColor.raw) {
-                return rawColor;
-            }
-            int d = color.distSq(rawColor);
-            if (d < dist) {
-                closest = color;
-                dist = d;
-            }
-        }
-        return closest;
-    }
-
     static BufferedImage resizeImage(BufferedImage image, int targetMax) {
         boolean portrait = image.getHeight() > image.getWidth();
         double size = portrait ? image.getHeight() : image.getWidth();
         double sf = (double) targetMax / size;
         int targetHeight = (int) (sf * image.getHeight());
         int targetWidth = (int) (sf * image.getWidth());
-        java.awt.Image resultingImage =
-                image.getScaledInstance(targetWidth, targetHeight, java.awt.Image.SCALE_DEFAULT);
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB
+                && image.getWidth() == targetWidth
+                && image.getHeight() == targetHeight) {
+            return image;
+        }
         BufferedImage scaledImage =
                 new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_ARGB);
-        Graphics graphics = scaledImage.getGraphics();
-        graphics.drawImage(resultingImage, 0, 0, null);
-        graphics.dispose();
+        Resampler.resize(
+                argbPixels(image),
+                image.getWidth(),
+                image.getHeight(),
+                pixels(scaledImage),
+                targetWidth,
+                targetHeight);
         return scaledImage;
     }
 
+    private static int[] argbPixels(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            return pixels(image);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] argb = new int[width * height];
+        // Layouts most decoders produce are unpacked directly, anything else goes through the
+        // color model
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR
+                && buffer.getSize() == argb.length * 3) {
+            byte[] bgr = ((DataBufferByte) buffer).getData();
+            for (int i = 0, j = 0; i < argb.length; i++, j += 3) {
+                argb[i] =
+                        0xFF000000
+                                | (bgr[j + 2] & 0xFF) << 16
+                                | (bgr[j + 1] & 0xFF) << 8
+                                | (bgr[j] & 0xFF);
+            }
+            return argb;
+        }
+        if (image.getType() == BufferedImage.TYPE_4BYTE_ABGR
+                && buffer.getSize() == argb.length * 4) {
+            byte[] abgr = ((DataBufferByte) buffer).getData();
+            for (int i = 0, j = 0; i < argb.length; i++, j += 4) {
+                argb[i] =
+                        (abgr[j] & 0xFF) << 24
+                                | (abgr[j + 3] & 0xFF) << 16
+                                | (abgr[j + 2] & 0xFF) << 8
+                                | (abgr[j + 1] & 0xFF);
+            }
+            return argb;
+        }
+        IntStream.range(0, (height + BAND_ROWS - 1) / BAND_ROWS)
+                .parallel()
+                .forEach(
+                        band -> {
+                            int y = band * BAND_ROWS;
+                            int rows = Math.min(BAND_ROWS, height - y);
+                            image.getRGB(0, y, width, rows, argb, y * width, width);
+                        });
+        return argb;
+    }
+
+    // Pixel count per color. Colors are opaque once flattened, so 0 marks an empty slot.
+    static class ColorHistogram {
+        private int[] colors = new int[1024];
+        private int[] counts = new int[1024];
+        private int size;
+
+        void add(int argb, int count) {
+            int mask = colors.length - 1;
+            int slot = slot(argb, mask);
+            while (colors[slot] != 0 && colors[slot] != argb) {
+                slot = (slot + 1) & mask;
+            }
+            counts[slot] += count;
+            if (colors[slot] == 0) {
+                colors[slot] = argb;
+                if (++size * 2 > colors.length) {
+                    grow();
+                }
+            }
+        }
+
+        ColorHistogram merge(ColorHistogram other) {
+            ColorHistogram into = size >= other.size ? this : other;
+            ColorHistogram from = into == this ? other : this;
+            for (int slot = 0; slot < from.colors.length; slot++) {
+                if (from.colors[slot] != 0) {
+                    into.add(from.colors[slot], from.counts[slot]);
+                }
+            }
+            return into;
+        }
+
+        // Entries packed as rgb << 32 | count, sorted by rgb
+        long[] entries() {
+            long[] entries = new long[size];
+            int i = 0;
+            for (int slot = 0; slot < colors.length; slot++) {
+                if (colors[slot] != 0) {
+                    entries[i++] = (long) (colors[slot] & 0xFFFFFF) << 32 | counts[slot];
+                }
+            }
+            Arrays.sort(entries);
+            return entries;
+        }
+
+        private void grow() {
+            int[] oldColors = colors;
+            int[] oldCounts = counts;
+            colors = new int[oldColors.length * 2];
+            counts = new int[oldCounts.length * 2];
+            size = 0;
+            for (int slot = 0; slot < oldColors.length; slot++) {
+                if (oldColors[slot] != 0) {
+                    add(oldColors[slot], oldCounts[slot]);
+                }
+            }
+        }
+
+        private static int slot(int argb, int mask) {
+            int hash = argb * 0x9E3779B9;
+            return (hash ^ hash >>> 16) & mask;
+        }
+    }
+
     static class ColorBucket {
-        int rgb;
         long r = 0, g = 0, b = 0;
         int size;
 
-        public ColorBucket(int argb) {
-            this.rgb = argb;
+        void add(int argb) {
+            add(argb, 1);
         }
 
-        void add(int argb) {
-            r += (argb & 0xFF0000) >> 16;
-            g += (argb & 0x00FF00) >> 8;
-            b += argb & 0x0000FF;
-            size++;
+        void add(int argb, int count) {
+            r += (long) ((argb & 0xFF0000) >> 16) * count;
+            g += (long) ((argb & 0x00FF00) >> 8) * count;
+            b += (long) (argb & 0x0000FF) * count;
+            size += count;
         }
 
         int getAverage() {
@@ -248,20 +530,27 @@ class ImageReader {
     }
 
     static class Image {
-        final BufferedImage original;
         final BufferedImage source;
+        final int[] original;
         final int width;
         final int height;
-        final Color[][] colors;
+        // Unsigned palette indices, see Arguments.MAX_COLOR_DEPTH
+        final char[] indices;
+        final Color[] palette;
         final Color bg;
 
-        Image(BufferedImage source, BufferedImage original, Color bg) {
+        Image(BufferedImage source, int[] original, Color[] palette, Color bg) {
             this.width = source.getWidth();
             this.height = source.getHeight();
             this.source = source;
             this.original = original;
+            this.palette = palette;
             this.bg = bg;
-            this.colors = new Color[width][height];
+            this.indices = new char[width * height];
+        }
+
+        int originalRgb(int x, int y) {
+            return original[y * width + x];
         }
     }
 }
@@ -2,20 +2,23 @@ package img2graph.core;
 
 import img2graph.core.FlowFill.Segment;
 import img2graph.core.Graph.Node;
-import img2graph.core.Graph.Relationship;
 import img2graph.core.ImageReader.Image;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
 
 public class ImageToGraph {
 
     public Graph process(Arguments arguments, InputStream stream) {
         System.out.println("Reading, scaling, simplifying image");
         Image img =
-                new ImageReader(arguments.targetResolution(), arguments.colorDepth())
+                new ImageReader(
+                                arguments.targetResolution(),
+                                arguments.colorDepth(),
+                                arguments.exactMedianCut())
                         .readImage(stream);
 
         System.out.println("Find segments");
@@ -28,7 +31,7 @@ public class ImageToGraph {
             System.out.printf(
                     "Found %s segments without background color (#%s)%n", segments.size(), img.bg);
         }
-        segments.removeIf(segment -> segment.pixels.size() < 10);
+        segments.removeIf(segment -> segment.size < 10);
         System.out.printf("Found %s segments after size filter%n", segments.size());
 
         NodeGenerator nodeGenerator =
@@ -39,23 +42,85 @@ public class ImageToGraph {
                         arguments.nodePadding(),
                         arguments.numSuperNodes(),
                         arguments.simplifiedColors(),
-                        segments.stream().mapToLong(s1 -> s1.pixels.size()).sum());
+                        arguments.poissonDisk(),
+                        segments.stream().mapToLong(s1 -> s1.size).sum());
         RelationshipGenerator relationshipGenerator =
-                new RelationshipGenerator(img, arguments.relMaxDist(), arguments.relsPerNode());
-        List<Node> allNodes = new ArrayList<>();
-        List<Relationship> allRels = new ArrayList<>();
-        segments.sort(Comparator.comparingLong((Segment s) -> s.pixels.size()).reversed());
-        for (Segment segment : segments) {
-            Collection<Node> nodes = nodeGenerator.generate(segment);
-            Collection<Relationship> relationships = relationshipGenerator.generate(nodes);
-            if (nodes.size() > 0) {
+                new RelationshipGenerator(
+                        img,
+                        flowFill.labels(),
+                        arguments.relMaxDist(),
+                        arguments.relsPerNode(),
+                        arguments.delaunay());
+        segments.sort(Comparator.comparingLong((Segment s) -> s.size).reversed());
+
+        // Segments never share nodes or relationships, so they are generated independently, each
+        // with its own share of super nodes and its own random sequence from the seed
+        int[] quotas = nodeGenerator.superNodeQuotas(segments);
+        int[] superNodesBefore = new int[quotas.length];
+        SplittableRandom seeds =
+                new SplittableRandom(
+                        arguments.seed() != null
+                                ? arguments.seed()
+                                : ThreadLocalRandom.current().nextLong());
+        SplittableRandom[] randoms = new SplittableRandom[segments.size()];
+        for (int i = 0; i < randoms.length; i++) {
+            superNodesBefore[i] = i == 0 ? 0 : superNodesBefore[i - 1] + quotas[i - 1];
+            randoms[i] = seeds.split();
+        }
+        List<SegmentGraph> graphs =
+                IntStream.range(0, segments.size())
+                        .parallel()
+                        .mapToObj(
+                                i -> {
+                                    List<Node> nodes =
+                                            nodeGenerator.generate(
+                                                    segments.get(i),
+                                                    quotas[i],
+                                                    superNodesBefore[i],
+                                                    randoms[i]);
+                                    return new SegmentGraph(
+                                            nodes, relationshipGenerator.generate(nodes));
+                                })
+                        .toList();
+
+        // Ids are only unique within a segment until they are offset in segment order
+        int nodeCount = 0;
+        int relCount = 0;
+        for (SegmentGraph graph : graphs) {
+            nodeCount += graph.nodes.size();
+            relCount += graph.relationships.length / 2;
+        }
+        int[] x = new int[nodeCount];
+        int[] y = new int[nodeCount];
+        int[] radius = new int[nodeCount];
+        int[] rgb = new int[nodeCount];
+        int[] from = new int[relCount];
+        int[] to = new int[relCount];
+        int nodeId = 0;
+        int relId = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            SegmentGraph graph = graphs.get(i);
+            if (graph.nodes.size() > 0) {
                 System.out.printf(
                         "Generated graph for segment #%s. %s nodes & %s relationships%n",
-                        segment.color, nodes.size(), relationships.size());
+                        segments.get(i).color, graph.nodes.size(), graph.relationships.length / 2);
+            }
+            int[] rels = graph.relationships;
+            for (int r = 0; r < rels.length; r += 2, relId++) {
+                from[relId] = nodeId + rels[r];
+                to[relId] = nodeId + rels[r + 1];
+            }
+            for (Node node : graph.nodes) {
+                x[nodeId] = node.coordinate().x();
+                y[nodeId] = node.coordinate().y();
+                radius[nodeId] = node.radius();
+                rgb[nodeId] = node.color().raw();
+                nodeId++;
             }
-            allNodes.addAll(nodes);
-            allRels.addAll(relationships);
         }
-        return new Graph(img.source, allNodes, allRels);
+        return new Graph(img.source, x, y, radius, rgb, from, to);
     }
+
+    // Relationships as pairs of positions in the node list
+    private record SegmentGraph(List<Node> nodes, int[] relationships) {}
 }
@@ -0,0 +1,148 @@
+package img2graph.core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Files for {@code neo4j-admin database import}: a header file for the nodes and one for the
+ * relationships, each followed by data files split into shards that are written in parallel on
+ * threads of their own. Nodes are imported with their index as an integer {@code :ID}, which
+ * relationships refer to.
+ */
+public final class Neo4jImport {
+    private static final String NODE_HEADER = "id:ID,x:int,y:int,radius:int,color\n";
+    private static final String REL_HEADER = ":START_ID,:END_ID,color\n";
+
+    private final Path directory;
+    private final String name;
+    private final int shards;
+    private final boolean compress;
+
+    /** Shards are gzipped when asked to, which the importer reads as well. */
+    public Neo4jImport(Path directory, String name, int shards, boolean compress) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("At least one shard is needed, got " + shards);
+        }
+        this.directory = directory;
+        this.name = name;
+        this.shards = shards;
+        this.compress = compress;
+    }
+
+    public void write(Graph graph) throws IOException {
+        Files.writeString(header("nodes"), NODE_HEADER);
+        Files.writeString(header("rels"), REL_HEADER);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int shard = 0; shard < shards; shard++) {
+            int index = shard;
+            tasks.add(() -> writeNodes(graph, index));
+            tasks.add(() -> writeRelationships(graph, index));
+        }
+        // Threads of their own, as blocking on file writes would hold up the common pool. More
+        // shards than processors just queue up.
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        Math.min(shards, Runtime.getRuntime().availableProcessors()));
+        try {
+            for (Future<Void> task : executor.invokeAll(tasks)) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing import files");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** The import command for the written files, into a database called neo4j. */
+    public String command() {
+        return "neo4j-admin database import full --id-type=INTEGER --nodes=Node="
+                + files("nodes")
+                + " --relationships=CONNECTED="
+                + files("rels")
+                + " neo4j";
+    }
+
+    private Void writeNodes(Graph graph, int shard) throws IOException {
+        try (Writer writer = newWriter(shard("nodes", shard))) {
+            TextBuffer text = new TextBuffer(writer);
+            Output.writeNodeRows(
+                    graph,
+                    start(graph.nodeCount(), shard),
+                    start(graph.nodeCount(), shard + 1),
+                    true,
+                    text);
+            text.flush();
+        }
+        return null;
+    }
+
+    private Void writeRelationships(Graph graph, int shard) throws IOException {
+        try (Writer writer = newWriter(shard("rels", shard))) {
+            TextBuffer text = new TextBuffer(writer);
+            Output.writeRelationshipRows(
+                    graph,
+                    start(graph.relationshipCount(), shard),
+                    start(graph.relationshipCount(), shard + 1),
+                    text);
+            text.flush();
+        }
+        return null;
+    }
+
+    // First row of a shard, so that shard sizes differ by one at most
+    private int start(int rows, int shard) {
+        return (int) ((long) rows * shard / shards);
+    }
+
+    private Writer newWriter(Path path) throws IOException {
+        if (!compress) {
+            return Files.newBufferedWriter(path);
+        }
+        return new BufferedWriter(
+                new OutputStreamWriter(
+                        new GZIPOutputStream(Files.newOutputStream(path), 1 << 16),
+                        StandardCharsets.UTF_8));
+    }
+
+    private String files(String kind) {
+        List<String> files = new ArrayList<>();
+        files.add(header(kind).toString());
+        for (int shard = 0; shard < shards; shard++) {
+            files.add(shard(kind, shard).toString());
+        }
+        return String.join(",", files);
+    }
+
+    private Path header(String kind) {
+        return directory.resolve(name + "-import-" + kind + "-header.csv");
+    }
+
+    private Path shard(String kind, int shard) {
+        return directory.resolve(
+                name + "-import-" + kind + "-" + (shard + 1) + (compress ? ".csv.gz" : ".csv"));
+    }
+}
@@ -5,10 +5,14 @@ import img2graph.core.FlowFill.Segment;
 import img2graph.core.ImageReader.Color;
 import img2graph.core.ImageReader.Image;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.List;
+import java.util.random.RandomGenerator;
 
 class NodeGenerator {
+    // Attempts around an active node before it counts as surrounded
+    private static final int POISSON_CANDIDATES = 30;
+
     private final Image image;
     private final int minRadius;
     private final int maxRadius;
@@ -16,8 +20,7 @@ class NodeGenerator {
     private final boolean useSimplifiedColor;
     private final long segmentedSize;
     private final int maxSuperNodes;
-    private int numberOfSuperNodes;
-    private int nodeId = 0;
+    private final boolean poissonDisk;
 
     NodeGenerator(
             Image image,
@@ -26,6 +29,7 @@ class NodeGenerator {
             int padding,
             int maxSuperNodes,
             boolean useSimplifiedColor,
+            boolean poissonDisk,
             long segmentedSize) {
         this.image = image;
         this.minRadius = minRadius;
@@ -33,83 +37,137 @@ class NodeGenerator {
         this.padding = padding;
         this.maxSuperNodes = maxSuperNodes;
         this.useSimplifiedColor = useSimplifiedColor;
+        this.poissonDisk = poissonDisk;
         this.segmentedSize = segmentedSize;
     }
 
-    Collection<Graph.Node> generate(Segment segment) {
-        double segmentPercent = (double) segment.pixels.size() / segmentedSize;
-        int superNodesLimit =
-                maxSuperNodes > numberOfSuperNodes
-                        ? Math.max(1, (int) Math.round(segmentPercent * maxSuperNodes))
-                        : 0;
+    /**
+     * Splits the super nodes over segments up front, in proportion to their size and in the order
+     * they are given, so every segment can be generated on its own.
+     */
+    int[] superNodeQuotas(List<Segment> segments) {
+        int[] quotas = new int[segments.size()];
+        int remaining = maxSuperNodes;
+        for (int i = 0; i < quotas.length && remaining > 0; i++) {
+            double segmentPercent = (double) segments.get(i).size / segmentedSize;
+            quotas[i] =
+                    Math.min(
+                            remaining,
+                            Math.max(1, (int) Math.round(segmentPercent * maxSuperNodes)));
+            remaining -= quotas[i];
+        }
+        return quotas;
+    }
 
-        List<Graph.Node> nodes = new ArrayList<>();
-        Coordinate coordinate;
-        while ((coordinate = segment.randomPixel()) != null) {
-            if (tryPutNodeAt(coordinate, segment, nodes, superNodesLimit > 0)) {
-                superNodesLimit--;
-            }
+    /**
+     * Nodes for one segment, with ids counting from 0. Super nodes shrink the more of them came
+     * before, counting the quotas of all earlier segments as used.
+     */
+    List<Graph.Node> generate(
+            Segment segment, int superNodeQuota, int superNodesBefore, RandomGenerator random) {
+        Placement placement = new Placement(segment, superNodeQuota, superNodesBefore);
+        if (poissonDisk) {
+            poissonDisk(placement, random);
+            return placement.nodes;
+        }
+        int pixel;
+        while ((pixel = segment.randomPixel(random)) >= 0) {
+            placement.tryPutNodeAt(segment.x(pixel), segment.y(pixel));
         }
-        return nodes;
+        return placement.nodes;
     }
 
-    private boolean tryPutNodeAt(
-            Coordinate coordinate,
-            Segment segment,
-            List<Graph.Node> into,
-            boolean canPlaceSuperNode) {
-        int radius = -1;
-        int extra =
-                canPlaceSuperNode
-                        ? (int)
-                                ((3.0 * maxRadius)
-                                        * (maxSuperNodes - numberOfSuperNodes * 0.8)
-                                        / maxSuperNodes)
-                        : 0;
-        for (int i = minRadius; i <= maxRadius + extra; i++) {
-            if (isFree(segment, coordinate, i)) {
-                radius = i;
-            } else {
-                break;
-            }
+    // Bridson style Poisson disk sampling. Seeds come from a background grid of cells about the
+    // size of the smallest node with its padding, visited once each in random order, and every
+    // seed grows nodes around itself until they have no room left. Only touches the pixels of
+    // the nodes and their neighbourhood, instead of every pixel of the segment.
+    private void poissonDisk(Placement placement, RandomGenerator random) {
+        Segment segment = placement.segment;
+        int cell = padding + Math.max(1, minRadius) + 1;
+        int columns = (segment.maxX - segment.minX) / cell + 1;
+        int rows = (segment.maxY - segment.minY) / cell + 1;
+        int[] cells = new int[columns * rows];
+        for (int i = 0; i < cells.length; i++) {
+            cells[i] = i;
         }
-        if (radius > 0) {
-            if (radius > maxRadius) {
-                numberOfSuperNodes++;
+        for (int i = cells.length - 1; i >= 0; i--) {
+            int j = random.nextInt(i + 1);
+            int c = cells[j];
+            cells[j] = cells[i];
+            int x = segment.minX + (c % columns) * cell + random.nextInt(cell);
+            int y = segment.minY + (c / columns) * cell + random.nextInt(cell);
+            if (segment.contains(x, y) && placement.tryPutNodeAt(x, y)) {
+                growFrom(placement, random);
             }
+        }
+    }
 
-            Color color =
-                    useSimplifiedColor
-                            ? segment.color
-                            : new Color(image.original.getRGB(coordinate.x(), coordinate.y()));
-            into.add(new Graph.Node(coordinate, radius, nodeId++, color));
-
-            int padding = radius + this.padding;
-            int paddingSq = padding * padding;
-            for (int x = -padding; x <= padding; x++) {
-                for (int y = -padding; y < padding; y++) {
-                    if (x * x + y * y <= paddingSq) {
-                        Coordinate removableCoordinate =
-                                new Coordinate(coordinate.x() + x, coordinate.y() + y);
-                        segment.pixels.remove(removableCoordinate);
-                    }
+    // Keeps placing nodes just outside the padding of the active ones, until none of them has
+    // room left around it
+    private void growFrom(Placement placement, RandomGenerator random) {
+        List<Graph.Node> nodes = placement.nodes;
+        int[] active = new int[16];
+        active[0] = nodes.size() - 1;
+        int size = 1;
+        int minDistance = padding + Math.max(1, minRadius) + 1;
+        while (size > 0) {
+            int i = random.nextInt(size);
+            Graph.Node node = nodes.get(active[i]);
+            boolean placed = false;
+            for (int k = 0; k < POISSON_CANDIDATES && !placed; k++) {
+                double angle = random.nextDouble(2 * Math.PI);
+                double distance = node.radius() + minDistance + random.nextDouble(maxRadius + 1);
+                int x = (int) Math.round(node.coordinate().x() + Math.cos(angle) * distance);
+                int y = (int) Math.round(node.coordinate().y() + Math.sin(angle) * distance);
+                placed = placement.tryPutNodeAt(x, y);
+            }
+            if (placed) {
+                if (size == active.length) {
+                    active = Arrays.copyOf(active, size * 2);
                 }
+                active[size++] = nodes.size() - 1;
+            } else {
+                active[i] = active[--size];
             }
         }
-        return radius > maxRadius;
     }
 
-    private boolean isFree(Segment segment, Coordinate coordinate, int radius) {
-        int radSq = radius * radius;
-        for (int x = -radius; x <= radius; x++) {
-            for (int y = -radius; y < radius; y++) {
-                if (x * x + y * y <= radSq
-                        && !segment.pixels.contains(
-                                new Coordinate(coordinate.x() + x, coordinate.y() + y))) {
-                    return false;
-                }
+    // Nodes and super nodes placed in one segment so far
+    private final class Placement {
+        private final Segment segment;
+        private final int superNodeQuota;
+        private final int superNodesBefore;
+        private final List<Graph.Node> nodes = new ArrayList<>();
+        private int superNodes;
+
+        Placement(Segment segment, int superNodeQuota, int superNodesBefore) {
+            this.segment = segment;
+            this.superNodeQuota = superNodeQuota;
+            this.superNodesBefore = superNodesBefore;
+        }
+
+        boolean tryPutNodeAt(int nodeX, int nodeY) {
+            int extra =
+                    superNodes < superNodeQuota
+                            ? (int)
+                                    ((3.0 * maxRadius)
+                                            * (maxSuperNodes
+                                                    - (superNodesBefore + superNodes) * 0.8)
+                                            / maxSuperNodes)
+                            : 0;
+            int radius = segment.freeRadius(nodeX, nodeY, maxRadius + extra);
+            if (radius < minRadius || radius <= 0) {
+                return false;
+            }
+            if (radius > maxRadius) {
+                superNodes++;
             }
+            Color color =
+                    useSimplifiedColor ? segment.color : new Color(image.originalRgb(nodeX, nodeY));
+            nodes.add(new Graph.Node(new Coordinate(nodeX, nodeY), radius, nodes.size(), color));
+
+            segment.carve(nodeX, nodeY, radius + padding);
+            return true;
         }
-        return true;
     }
 }
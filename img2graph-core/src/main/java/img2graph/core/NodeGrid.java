@@ -0,0 +1,80 @@
+package img2graph.core;
+
+/**
+ * Uniform grid over the centers of a set of nodes, for finding the ones within a square window. The
+ * nodes of every cell are stored contiguously, so a window no larger than a cell only has to look
+ * at the 3x3 cells around its center.
+ */
+final class NodeGrid {
+    private final int[] x;
+    private final int[] y;
+    private final int cellSize;
+    private final int minX;
+    private final int minY;
+    private final int columns;
+    private final int rows;
+    private final int[] cellStart;
+    private final int[] cellItems;
+
+    NodeGrid(int[] x, int[] y, int cellSize) {
+        this.x = x;
+        this.y = y;
+        this.cellSize = cellSize;
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < x.length; i++) {
+            minX = Math.min(minX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.columns = x.length == 0 ? 0 : (maxX - minX) / cellSize + 1;
+        this.rows = x.length == 0 ? 0 : (maxY - minY) / cellSize + 1;
+
+        // Counting sort of the nodes by cell
+        cellStart = new int[columns * rows + 1];
+        for (int i = 0; i < x.length; i++) {
+            cellStart[cell(i) + 1]++;
+        }
+        for (int cell = 0; cell < columns * rows; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        cellItems = new int[x.length];
+        int[] next = cellStart.clone();
+        for (int i = 0; i < x.length; i++) {
+            cellItems[next[cell(i)]++] = i;
+        }
+    }
+
+    /**
+     * Stores the nodes other than the given one that are at most reach away on both axes in result,
+     * in a fixed order, and returns how many there are. Reach can't be larger than the cell size.
+     */
+    int near(int node, int reach, int[] result) {
+        int centerX = x[node];
+        int centerY = y[node];
+        int column = (centerX - minX) / cellSize;
+        int row = (centerY - minY) / cellSize;
+        int size = 0;
+        for (int r = Math.max(0, row - 1); r <= Math.min(rows - 1, row + 1); r++) {
+            for (int c = Math.max(0, column - 1); c <= Math.min(columns - 1, column + 1); c++) {
+                int cell = r * columns + c;
+                for (int item = cellStart[cell]; item < cellStart[cell + 1]; item++) {
+                    int other = cellItems[item];
+                    if (other != node
+                            && Math.abs(x[other] - centerX) <= reach
+                            && Math.abs(y[other] - centerY) <= reach) {
+                        result[size++] = other;
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    private int cell(int node) {
+        return (y[node] - minY) / cellSize * columns + (x[node] - minX) / cellSize;
+    }
+}
@@ -1,115 +1,219 @@
 package img2graph.core;
 
-import img2graph.core.FlowFill.Coordinate;
-import img2graph.core.Graph.Node;
-import img2graph.core.Graph.Relationship;
-import img2graph.core.ImageReader.Color;
-import java.awt.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
-import org.jfree.svg.SVGGraphics2D;
 
 public final class Output {
 
-    public static String graphToSvg(Graph graph, boolean transparentBg, boolean outline) {
-        var width = graph.image().getWidth();
-        var height = graph.image().getHeight();
-        SVGGraphics2D svg = new SVGGraphics2D(width, height);
-        if (!transparentBg) {
-            svg.setPaint(java.awt.Color.WHITE);
-            svg.fillRect(0, 0, width, height);
-        }
-
-        for (Relationship relationship : graph.relationships()) {
-            svg.setPaint(new java.awt.Color(relationship.from().color().raw()));
-            Coordinate from = relationship.from().coordinate();
-            Coordinate to = relationship.to().coordinate();
-            svg.drawLine(from.x(), from.y(), to.x(), to.y());
-        }
-        svg.setStroke(new BasicStroke(.50f));
-        for (Node node : graph.nodes()) {
-            int radius = node.radius();
-            int side = radius * 2;
-            Color color = node.color();
-            svg.setPaint(new java.awt.Color(color.raw()));
-            svg.fillOval(
-                    node.coordinate().x() - radius, node.coordinate().y() - radius, side, side);
-            if (outline) {
-                float factor = 0.5f / 255.f;
-                svg.setPaint(
-                        new java.awt.Color(
-                                color.r() * factor, color.g() * factor, color.b() * factor));
-                svg.drawOval(
-                        node.coordinate().x() - radius, node.coordinate().y() - radius, side, side);
-            }
+    public static String graphToSvg(
+            Graph graph, boolean transparentBg, boolean outline, boolean compact) {
+        StringBuilder svg = new StringBuilder();
+        try {
+            writeSvg(graph, transparentBg, outline, compact, svg);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        return svg.toString();
+    }
 
-        return svg.getSVGElement();
+    /**
+     * Compact SVG groups nodes by color and draws all relationships of a color as one path, which
+     * is a lot smaller but no longer has an element per node or relationship.
+     */
+    public static void writeSvg(
+            Graph graph, boolean transparentBg, boolean outline, boolean compact, Appendable out)
+            throws IOException {
+        SvgWriter.write(graph, transparentBg, outline, compact, out);
     }
 
     public static String nodesToCsv(Graph graph) {
         StringBuilder nodesCsv = new StringBuilder();
-        for (Node node : graph.nodes()) {
-            nodesCsv.append(node).append(",").append(node.color()).append('\n');
+        try {
+            writeNodesCsv(graph, nodesCsv);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
         return nodesCsv.toString();
     }
 
+    public static void writeNodesCsv(Graph graph, Appendable out) throws IOException {
+        TextBuffer text = new TextBuffer(out);
+        writeNodeRows(graph, 0, graph.nodeCount(), false, text);
+        text.flush();
+    }
+
+    // CSV rows of the nodes in [from, to), each starting with the node id when asked to
+    static void writeNodeRows(Graph graph, int from, int to, boolean withId, TextBuffer text)
+            throws IOException {
+        for (int node = from; node < to; node++) {
+            if (withId) {
+                text.number(node).append(',');
+            }
+            text.number(graph.x(node))
+                    .append(',')
+                    .number(graph.y(node))
+                    .append(',')
+                    .number(graph.radius(node))
+                    .append(',')
+                    .hex(graph.rgb(node))
+                    .append('\n');
+        }
+    }
+
     public static String relationshipsToCsv(Graph graph) {
         StringBuilder relCsv = new StringBuilder();
-        for (Relationship rel : graph.relationships()) {
-            relCsv.append(rel.from().id())
-                    .append(",")
-                    .append(rel.to().id())
-                    .append(",")
-                    .append(rel.from().color())
-                    .append('\n');
+        try {
+            writeRelationshipsCsv(graph, relCsv);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
         return relCsv.toString();
     }
 
-    public static String graphToJson(Graph graph) {
-        StringBuilder nodesJson = new StringBuilder();
-        for (Node node : graph.nodes()) {
-            nodesJson.append(nodeAsJson(node, node.color())).append(",");
-        }
+    public static void writeRelationshipsCsv(Graph graph, Appendable out) throws IOException {
+        TextBuffer text = new TextBuffer(out);
+        writeRelationshipRows(graph, 0, graph.relationshipCount(), text);
+        text.flush();
+    }
 
-        StringBuilder relJson = new StringBuilder();
-        for (Relationship rel : graph.relationships()) {
-            relJson.append(relAsJson(rel, rel.from().color())).append(",");
+    // CSV rows of the relationships in [from, to)
+    static void writeRelationshipRows(Graph graph, int from, int to, TextBuffer text)
+            throws IOException {
+        for (int rel = from; rel < to; rel++) {
+            text.number(graph.from(rel))
+                    .append(',')
+                    .number(graph.to(rel))
+                    .append(',')
+                    .hex(graph.rgb(graph.from(rel)))
+                    .append('\n');
         }
+    }
 
-        // Delete last commas
-        if (!nodesJson.isEmpty()) {
-            nodesJson.deleteCharAt(nodesJson.length() - 1);
-        }
-        if (!relJson.isEmpty()) {
-            relJson.deleteCharAt(relJson.length() - 1);
+    public static String graphToJson(Graph graph) {
+        StringBuilder json = new StringBuilder();
+        try {
+            writeJson(graph, json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return String.format(jsonTemplate, nodesJson, relJson);
+        return json.toString();
     }
 
-    public static String arrowsUrl(String json) {
-        return "https://arrows.app/#/import/json=" + base64Encode(json);
+    public static void writeJson(Graph graph, Appendable out) throws IOException {
+        writeJson(graph, out, jsonParts, nodeParts, relParts);
     }
 
-    private static String base64Encode(String string) {
-        return Base64.getEncoder().encodeToString(string.replaceAll("\\s", "").getBytes());
+    /** Same as {@link #writeJson} without any whitespace. */
+    public static void writeCompactJson(Graph graph, Appendable out) throws IOException {
+        writeJson(graph, out, compactJsonParts, compactNodeParts, compactRelParts);
     }
 
-    private static String nodeAsJson(Node node, Color color) {
-        return String.format(
-                nodeTemplate,
-                node.id(),
-                node.coordinate().x(),
-                node.coordinate().y(),
-                node.radius(),
-                color);
+    private static void writeJson(
+            Graph graph, Appendable out, String[] jsonParts, String[] nodeParts, String[] relParts)
+            throws IOException {
+        TextBuffer text = new TextBuffer(out);
+        text.append(jsonParts[0]);
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            if (node > 0) {
+                text.append(',');
+            }
+            text.append(nodeParts[0])
+                    .number(node)
+                    .append(nodeParts[1])
+                    .number(graph.x(node))
+                    .append(nodeParts[2])
+                    .number(graph.y(node))
+                    .append(nodeParts[3])
+                    .number(graph.radius(node))
+                    .append(nodeParts[4])
+                    .hex(graph.rgb(node))
+                    .append(nodeParts[5]);
+        }
+        text.append(jsonParts[1]);
+        for (int rel = 0; rel < graph.relationshipCount(); rel++) {
+            if (rel > 0) {
+                text.append(',');
+            }
+            int from = graph.from(rel);
+            text.append(relParts[0])
+                    .number(rel)
+                    .append(relParts[1])
+                    .number(from)
+                    .append(relParts[2])
+                    .number(graph.to(rel))
+                    .append(relParts[3])
+                    .hex(graph.rgb(from))
+                    .append(relParts[4]);
+        }
+        text.append(jsonParts[2]);
+        text.flush();
+    }
+
+    /**
+     * A cypher-shell script creating the graph. Rows are set as a parameter in batches, each
+     * created by one {@code UNWIND $rows} statement.
+     */
+    public static void writeCypher(Graph graph, Appendable out) throws IOException {
+        TextBuffer text = new TextBuffer(out);
+        text.append(
+                "CREATE CONSTRAINT node_id IF NOT EXISTS FOR (n:Node) REQUIRE n.id IS UNIQUE;\n");
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            text.append(node % CYPHER_BATCH == 0 ? ":param rows => [[" : ",[")
+                    .number(node)
+                    .append(',')
+                    .number(graph.x(node))
+                    .append(',')
+                    .number(graph.y(node))
+                    .append(',')
+                    .number(graph.radius(node))
+                    .append(",'")
+                    .hex(graph.rgb(node))
+                    .append("']");
+            if (node % CYPHER_BATCH == CYPHER_BATCH - 1 || node == graph.nodeCount() - 1) {
+                text.append("]\n")
+                        .append("UNWIND $rows AS row CREATE (:Node {id: row[0], x: row[1],")
+                        .append(" y: row[2], radius: row[3], color: row[4]});\n");
+            }
+        }
+        for (int rel = 0; rel < graph.relationshipCount(); rel++) {
+            text.append(rel % CYPHER_BATCH == 0 ? ":param rows => [[" : ",[")
+                    .number(graph.from(rel))
+                    .append(',')
+                    .number(graph.to(rel))
+                    .append(",'")
+                    .hex(graph.rgb(graph.from(rel)))
+                    .append("']");
+            if (rel % CYPHER_BATCH == CYPHER_BATCH - 1 || rel == graph.relationshipCount() - 1) {
+                text.append("]\n")
+                        .append("UNWIND $rows AS row MATCH (a:Node {id: row[0]}),")
+                        .append(" (b:Node {id: row[1]})")
+                        .append(" CREATE (a)-[:CONNECTED {color: row[2]}]->(b);\n");
+            }
+        }
+        text.flush();
     }
 
-    private static String relAsJson(Relationship rel, Color color) {
-        return String.format(relTemplate, rel.id(), rel.from().id(), rel.to().id(), color);
+    private static final int CYPHER_BATCH = 10_000;
+
+    // Compact JSON encoded straight into the URL as it is written
+    public static String arrowsUrl(Graph graph) {
+        var url = new ByteArrayOutputStream();
+        url.writeBytes(ARROWS_IMPORT.getBytes(StandardCharsets.US_ASCII));
+        try (var json =
+                new OutputStreamWriter(Base64.getEncoder().wrap(url), StandardCharsets.UTF_8)) {
+            writeCompactJson(graph, json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return url.toString(StandardCharsets.US_ASCII);
     }
 
+    private static final String ARROWS_IMPORT = "https://arrows.app/#/import/json=";
+
     private static final String jsonTemplate =
             """
             {
@@ -158,4 +262,20 @@ public final class Output {
                   }
                 }
             """;
+
+    // The text around the values of every template, written out piece by piece in between them
+    private static final String[] jsonParts = jsonTemplate.split("%s", -1);
+    private static final String[] nodeParts = nodeTemplate.split("%[ds]", -1);
+    private static final String[] relParts = relTemplate.split("%[ds]", -1);
+    private static final String[] compactJsonParts = withoutWhitespace(jsonParts);
+    private static final String[] compactNodeParts = withoutWhitespace(nodeParts);
+    private static final String[] compactRelParts = withoutWhitespace(relParts);
+
+    private static String[] withoutWhitespace(String[] parts) {
+        String[] compact = new String[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            compact[i] = parts[i].replaceAll("\\s", "");
+        }
+        return compact;
+    }
 }
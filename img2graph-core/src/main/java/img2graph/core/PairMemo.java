@@ -0,0 +1,77 @@
+package img2graph.core;
+
+/**
+ * Whether unordered pairs of node indices have been accepted or rejected, in an open addressing
+ * table of primitive keys. A pair is keyed as its lower index in the high half and the higher one
+ * in the low half, so both directions find the same entry.
+ */
+final class PairMemo {
+    static final int UNCHECKED = -1;
+    static final int REJECTED = 0;
+    static final int ACCEPTED = 1;
+
+    // 0 marks an empty slot, which no pair of two different indices can be
+    private long[] keys = new long[16];
+    private long[] accepted = new long[1];
+    private int size;
+
+    static long pair(int a, int b) {
+        return (long) Math.min(a, b) << 32 | Math.max(a, b);
+    }
+
+    int get(long pair) {
+        int mask = keys.length - 1;
+        for (int slot = hash(pair) & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == pair) {
+                return (accepted[slot >>> 6] & 1L << slot) != 0 ? ACCEPTED : REJECTED;
+            }
+        }
+        return UNCHECKED;
+    }
+
+    void put(long pair, boolean accept) {
+        if (2 * (size + 1) > keys.length) {
+            grow();
+        }
+        int slot = insert(keys, pair);
+        if (keys[slot] == 0) {
+            keys[slot] = pair;
+            size++;
+        }
+        if (accept) {
+            accepted[slot >>> 6] |= 1L << slot;
+        } else {
+            accepted[slot >>> 6] &= ~(1L << slot);
+        }
+    }
+
+    // The slot holding the pair, or the empty one where it belongs
+    private static int insert(long[] keys, long pair) {
+        int mask = keys.length - 1;
+        int slot = hash(pair) & mask;
+        while (keys[slot] != 0 && keys[slot] != pair) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldAccepted = accepted;
+        keys = new long[oldKeys.length * 2];
+        accepted = new long[(keys.length + 63) >>> 6];
+        for (int old = 0; old < oldKeys.length; old++) {
+            if (oldKeys[old] != 0) {
+                int slot = insert(keys, oldKeys[old]);
+                keys[slot] = oldKeys[old];
+                if ((oldAccepted[old >>> 6] & 1L << old) != 0) {
+                    accepted[slot >>> 6] |= 1L << slot;
+                }
+            }
+        }
+    }
+
+    private static int hash(long pair) {
+        return (int) ((pair * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+}
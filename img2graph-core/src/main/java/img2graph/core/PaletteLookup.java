@@ -0,0 +1,103 @@
+package img2graph.core;
+
+import img2graph.core.ImageReader.Color;
+import java.util.Arrays;
+
+/**
+ * Nearest palette entry lookup. The RGB cube is split into 32x32x32 cells and every cell keeps the
+ * palette entries that can be the closest one for any color inside of it, so a lookup only has to
+ * compare against a handful of candidates. Results are the same as a linear scan over the whole
+ * palette, including the lowest index winning on ties.
+ */
+class PaletteLookup {
+    private static final int BITS = 5;
+    private static final int CELLS = 1 << BITS;
+    private static final int CELL_SIZE = 256 >> BITS;
+
+    private final int[] palette;
+    private final int[] cellStart;
+    private char[] candidates;
+
+    PaletteLookup(Color[] palette) {
+        this.palette = new int[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            this.palette[i] = palette[i].raw();
+        }
+        this.cellStart = new int[CELLS * CELLS * CELLS + 1];
+        this.candidates = new char[cellStart.length * 2];
+
+        int[] minDist = new int[palette.length];
+        int size = 0;
+        for (int cell = 0; cell < CELLS * CELLS * CELLS; cell++) {
+            int r = (cell >> (2 * BITS)) * CELL_SIZE;
+            int g = ((cell >> BITS) & (CELLS - 1)) * CELL_SIZE;
+            int b = (cell & (CELLS - 1)) * CELL_SIZE;
+            // The closest entry for any point of the cell is at most this far away
+            int bound = Integer.MAX_VALUE;
+            for (int i = 0; i < palette.length; i++) {
+                Color color = palette[i];
+                minDist[i] =
+                        sq(axisMin(color.r(), r))
+                                + sq(axisMin(color.g(), g))
+                                + sq(axisMin(color.b(), b));
+                int maxDist =
+                        sq(axisMax(color.r(), r))
+                                + sq(axisMax(color.g(), g))
+                                + sq(axisMax(color.b(), b));
+                bound = Math.min(bound, maxDist);
+            }
+            cellStart[cell] = size;
+            for (int i = 0; i < palette.length; i++) {
+                if (minDist[i] <= bound) {
+                    if (size == candidates.length) {
+                        candidates = Arrays.copyOf(candidates, size * 2);
+                    }
+                    candidates[size++] = (char) i;
+                }
+            }
+        }
+        cellStart[CELLS * CELLS * CELLS] = size;
+    }
+
+    int closest(int argb) {
+        int cell =
+                ((argb >> (16 + 8 - BITS)) & (CELLS - 1)) << (2 * BITS)
+                        | ((argb >> (8 + 8 - BITS)) & (CELLS - 1)) << BITS
+                        | (argb >> (8 - BITS)) & (CELLS - 1);
+        int closest = -1;
+        int dist = Integer.MAX_VALUE;
+        for (int c = cellStart[cell]; c < cellStart[cell + 1]; c++) {
+            int i = candidates[c];
+            if (palette[i] == argb) {
+                return i;
+            }
+            int d = distSq(palette[i], argb);
+            if (d < dist) {
+                closest = i;
+                dist = d;
+            }
+        }
+        return closest;
+    }
+
+    private static int axisMin(int value, int cellLow) {
+        int cellHigh = cellLow + CELL_SIZE - 1;
+        return value < cellLow ? cellLow - value : value > cellHigh ? value - cellHigh : 0;
+    }
+
+    private static int axisMax(int value, int cellLow) {
+        int cellHigh = cellLow + CELL_SIZE - 1;
+        return Math.max(Math.abs(value - cellLow), Math.abs(value - cellHigh));
+    }
+
+    private static int sq(int value) {
+        return value * value;
+    }
+
+    static int distSq(int argb, int otherArgb) {
+        int dR = ((argb & 0xFF0000) >> 16) - ((otherArgb & 0xFF0000) >> 16);
+        int dG = ((argb & 0x00FF00) >> 8) - ((otherArgb & 0x00FF00) >> 8);
+        int dB = (argb & 0x0000FF) - (otherArgb & 0x0000FF);
+        return dR * dR + dG * dG + dB * dB;
+    }
+}
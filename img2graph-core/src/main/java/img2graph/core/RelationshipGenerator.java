@@ -1,109 +1,150 @@
 package img2graph.core;
 
-import static java.util.Comparator.comparingInt;
-
-import img2graph.core.FlowFill.Coordinate;
 import img2graph.core.Graph.Node;
-import img2graph.core.ImageReader.Color;
 import img2graph.core.ImageReader.Image;
-import java.util.*;
+import java.util.Arrays;
+import java.util.List;
 
 class RelationshipGenerator {
     private final Image image;
+    private final int[] labels;
     private final int maxDistance;
     private final int numRels;
-    private TreeSet<Node> sortedX;
-    private TreeSet<Node> sortedY;
-    private int relId = 0;
+    private final boolean delaunay;
 
-    RelationshipGenerator(Image image, int maxDistance, int numRels) {
+    RelationshipGenerator(
+            Image image, int[] labels, int maxDistance, int numRels, boolean delaunay) {
         this.image = image;
+        this.labels = labels;
         this.maxDistance = maxDistance;
         this.numRels = numRels;
+        this.delaunay = delaunay;
     }
 
-    Collection<Graph.Relationship> generate(Collection<Node> nodes) {
-        Set<Graph.Relationship> relationships = new HashSet<>();
-        sortedX =
-                new TreeSet<>(
-                        comparingInt((Node n) -> n.coordinate().x())
-                                .thenComparingInt(n -> n.coordinate().y()));
-        sortedY =
-                new TreeSet<>(
-                        comparingInt((Node n) -> n.coordinate().y())
-                                .thenComparingInt(n -> n.coordinate().x()));
-        sortedX.addAll(nodes);
-        sortedY.addAll(nodes);
-        int biggestNode = nodes.stream().map(Graph.Node::radius).max(Integer::compare).orElse(0);
-        for (Node node : nodes) {
-            List<Node> neighbors = nearestNeighbors(node, biggestNode);
-            neighbors.sort(Comparator.comparingDouble(n -> weightedSort(n, node)));
+    /**
+     * Relationships between the nodes of one segment, as the positions of both nodes in the list
+     * one pair after the other. Every pair only occurs once.
+     */
+    int[] generate(List<Node> nodes) {
+        Node[] array = nodes.toArray(new Node[0]);
+        int[] x = new int[array.length];
+        int[] y = new int[array.length];
+        int biggestNode = 0;
+        for (int i = 0; i < array.length; i++) {
+            x[i] = array[i].coordinate().x();
+            y[i] = array[i].coordinate().y();
+            biggestNode = Math.max(biggestNode, array[i].radius());
+        }
+        // Candidates are either the nodes sharing a triangulation edge, or every node in a window
+        // big enough to reach the biggest one
+        Delaunay triangulation = delaunay ? new Delaunay(x, y) : null;
+        NodeGrid grid =
+                delaunay ? null : new NodeGrid(x, y, Math.max(1, maxDistance + 2 * biggestNode));
+        int[] neighbors = new int[array.length];
+        long[] sorted = new long[array.length];
+
+        // Relationships are undirected, so every pair is only validated and added once
+        PairMemo checked = new PairMemo();
+        int[] relationships = new int[2 * array.length];
+        int size = 0;
+        for (int i = 0; i < array.length; i++) {
+            Node node = array[i];
+            int count =
+                    delaunay
+                            ? triangulation.neighbors(i, neighbors)
+                            : grid.near(i, maxDistance + biggestNode + node.radius(), neighbors);
+            // Only the ones close enough, with weight and index packed together so they sort as
+            // one primitive
+            int candidates = 0;
+            for (int n = 0; n < count; n++) {
+                Node other = array[neighbors[n]];
+                double gap = gap(node, other);
+                if (gap <= maxDistance) {
+                    sorted[candidates++] =
+                            (long) sortable(weightedSort(gap, other, node)) << 32 | neighbors[n];
+                }
+            }
+            Arrays.sort(sorted, 0, candidates);
             int relsAdded = 0;
-            for (int i = 0; relsAdded < numRels && i < neighbors.size(); i++) {
-                Graph.Relationship relationship =
-                        new Graph.Relationship(node, neighbors.get(i), relId++);
-                if (validate(relationship)) {
+            for (int n = 0; relsAdded < numRels && n < candidates; n++) {
+                int j = (int) sorted[n];
+                Node other = array[j];
+                // Pairs with a later node can't have been checked yet, and pairs with an earlier
+                // one won't come up again
+                int state = j < i ? checked.get(PairMemo.pair(i, j)) : PairMemo.UNCHECKED;
+                if (state == PairMemo.UNCHECKED) {
+                    boolean valid = isInSight(node, other);
+                    if (j > i) {
+                        checked.put(PairMemo.pair(i, j), valid);
+                    }
+                    if (valid) {
+                        if (size == relationships.length) {
+                            relationships = Arrays.copyOf(relationships, 2 * size);
+                        }
+                        relationships[size++] = i;
+                        relationships[size++] = j;
+                    }
+                    state = valid ? PairMemo.ACCEPTED : PairMemo.REJECTED;
+                }
+                if (state == PairMemo.ACCEPTED) {
                     relsAdded++;
-                    relationships.add(relationship);
                 }
             }
         }
-        return relationships.stream().toList();
+        return Arrays.copyOf(relationships, size);
     }
 
-    private boolean validate(Graph.Relationship relationship) {
-        Coordinate from = relationship.from().coordinate();
-        Coordinate to = relationship.to().coordinate();
-        int diffX = to.x() - from.x();
-        int diffY = to.y() - from.y();
-        double dist =
-                Math.sqrt(from.distSq(to))
-                        - relationship.from().radius()
-                        - relationship.to().radius();
-        if (dist > maxDistance) {
-            return false;
-        }
-        int steps = Math.max(Math.abs(diffX), Math.abs(diffY));
-        double dx = diffX / (double) steps;
-        double dy = diffY / (double) steps;
-        Color simpleColor = image.colors[from.x()][from.y()];
-        for (int i = 0; i < steps; i++) {
-            if (!image.colors[(int) (from.x() + dx * i)][(int) (from.y() + dy * i)].equals(
-                    simpleColor)) {
+    // Whether the straight line between the centers only crosses pixels of the same segment,
+    // stepping through the label map with Bresenham
+    private boolean isInSight(Node from, Node to) {
+        int fromX = from.coordinate().x();
+        int fromY = from.coordinate().y();
+        int toX = to.coordinate().x();
+        int toY = to.coordinate().y();
+        int width = image.width;
+        int diffX = Math.abs(toX - fromX);
+        int diffY = -Math.abs(toY - fromY);
+        int stepX = fromX < toX ? 1 : -1;
+        int stepY = fromY < toY ? width : -width;
+        int i = fromY * width + fromX;
+        int end = toY * width + toX;
+        int label = labels[i];
+        int error = diffX + diffY;
+        while (i != end) {
+            int error2 = 2 * error;
+            if (error2 >= diffY) {
+                error += diffY;
+                i += stepX;
+            }
+            if (error2 <= diffX) {
+                error += diffX;
+                i += stepY;
+            }
+            if (labels[i] != label) {
                 return false;
             }
         }
         return true;
     }
 
-    private List<Node> nearestNeighbors(Node node, int biggestNode) {
-        int maxDist = maxDistance + biggestNode + node.radius();
-        Node lowKey =
-                new Node(
-                        new Coordinate(
-                                node.coordinate().x() - maxDist, node.coordinate().y() - maxDist),
-                        0,
-                        0,
-                        null);
-        Node highKey =
-                new Node(
-                        new Coordinate(
-                                node.coordinate().x() + maxDist, node.coordinate().y() + maxDist),
-                        0,
-                        0,
-                        null);
-        Set<Node> closeNodes = new HashSet<>(sortedX.subSet(lowKey, highKey));
-        closeNodes.retainAll(sortedY.subSet(lowKey, highKey));
-        closeNodes.remove(node);
-        return new ArrayList<>(closeNodes);
+    // Float bits flipped so that they compare as ints in the same order as the floats
+    private static int sortable(double value) {
+        int bits = Float.floatToIntBits((float) value);
+        return bits ^ (bits >> 31 & Integer.MAX_VALUE);
+    }
+
+    // Distance between the edges of both nodes
+    private static double gap(Node node, Node other) {
+        return Math.sqrt(node.coordinate().distSq(other.coordinate()))
+                - node.radius()
+                - other.radius();
     }
 
-    private static double weightedSort(Node neighbour, Node node) {
-        double dist = Math.sqrt(neighbour.coordinate().distSq(node.coordinate()));
+    private static double weightedSort(double gap, Node neighbour, Node node) {
         double factor =
                 Math.min(
                         1.0 / (neighbour.radius() * neighbour.radius()),
                         1.0 / (node.radius() * node.radius()));
-        return (dist - node.radius() - neighbour.radius()) * factor;
+        return gap * factor;
     }
 }
@@ -0,0 +1,106 @@
+package img2graph.core;
+
+import java.util.stream.IntStream;
+
+/**
+ * Resizes packed ARGB rasters. Downscaling averages the area every target pixel covers, upscaling
+ * replicates the nearest source pixel. Both axes are handled in separate passes which are split by
+ * rows over the common fork join pool.
+ */
+final class Resampler {
+
+    private Resampler() {}
+
+    static void resize(
+            int[] src, int srcWidth, int srcHeight, int[] dst, int dstWidth, int dstHeight) {
+        if (srcWidth == dstWidth && srcHeight == dstHeight) {
+            System.arraycopy(src, 0, dst, 0, dst.length);
+            return;
+        }
+        Filter horizontal = new Filter(srcWidth, dstWidth);
+        Filter vertical = new Filter(srcHeight, dstHeight);
+
+        int[] rows = new int[dstWidth * srcHeight];
+        IntStream.range(0, srcHeight)
+                .parallel()
+                .forEach(
+                        y -> {
+                            for (int x = 0; x < dstWidth; x++) {
+                                rows[y * dstWidth + x] = horizontal.apply(x, src, y * srcWidth, 1);
+                            }
+                        });
+        IntStream.range(0, dstHeight)
+                .parallel()
+                .forEach(
+                        y -> {
+                            for (int x = 0; x < dstWidth; x++) {
+                                dst[y * dstWidth + x] = vertical.apply(y, rows, x, dstWidth);
+                            }
+                        });
+    }
+
+    // Source taps and their weights for every target position along one axis
+    private static final class Filter {
+        private final int[] start;
+        private final int[] offset;
+        private final int[] weights;
+
+        Filter(int srcSize, int dstSize) {
+            start = new int[dstSize];
+            offset = new int[dstSize + 1];
+            if (dstSize >= srcSize) {
+                // Same source column choice as java.awt.image.ReplicateScaleFilter
+                weights = new int[dstSize];
+                for (int i = 0; i < dstSize; i++) {
+                    start[i] = (int) ((2L * i + 1) * srcSize / (2L * dstSize));
+                    offset[i + 1] = i + 1;
+                    weights[i] = 1;
+                }
+                return;
+            }
+            double scale = (double) srcSize / dstSize;
+            int taps = (int) Math.ceil(scale) + 1;
+            int[] weights = new int[dstSize * taps];
+            int size = 0;
+            for (int i = 0; i < dstSize; i++) {
+                double from = i * scale;
+                double to = Math.min(srcSize, (i + 1) * scale);
+                start[i] = (int) from;
+                for (int j = start[i]; j < to; j++) {
+                    double coverage = Math.min(to, j + 1) - Math.max(from, j);
+                    weights[size++] = (int) Math.round(coverage * 256);
+                }
+                offset[i + 1] = size;
+            }
+            this.weights = weights;
+        }
+
+        // Colors are weighted by alpha as well, so transparent pixels do not darken the edges of
+        // what they surround. For opaque pixels this rounds the same as a plain average.
+        int apply(int i, int[] pixels, int base, int stride) {
+            long a = 0, r = 0, g = 0, b = 0, total = 0;
+            int index = base + start[i] * stride;
+            for (int w = offset[i]; w < offset[i + 1]; w++, index += stride) {
+                int weight = weights[w];
+                int argb = pixels[index];
+                long alpha = (long) (argb >>> 24) * weight;
+                a += alpha;
+                r += ((argb >> 16) & 0xFF) * alpha;
+                g += ((argb >> 8) & 0xFF) * alpha;
+                b += (argb & 0xFF) * alpha;
+                total += weight;
+            }
+            if (total == 0) {
+                return pixels[base + start[i] * stride];
+            }
+            if (a == 0) {
+                return 0;
+            }
+            long half = a / 2;
+            return (int) ((a + total / 2) / total) << 24
+                    | (int) ((r + half) / a) << 16
+                    | (int) ((g + half) / a) << 8
+                    | (int) ((b + half) / a);
+        }
+    }
+}
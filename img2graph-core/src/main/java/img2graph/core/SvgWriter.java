@@ -0,0 +1,148 @@
+package img2graph.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Writes a graph as SVG, one {@code <line>} per relationship below one {@code <circle>} per node,
+ * with only the attributes that differ between elements. Shared styles sit on the root element.
+ *
+ * <p>The compact form groups elements by color instead: circles under a {@code <g>} with their
+ * fill, and all relationships of one color as a single {@code <path>}.
+ */
+final class SvgWriter {
+
+    private SvgWriter() {}
+
+    static void write(
+            Graph graph, boolean transparentBg, boolean outline, boolean compact, Appendable out)
+            throws IOException {
+        int width = graph.width();
+        int height = graph.height();
+        TextBuffer text = new TextBuffer(out);
+        text.append("<svg xmlns='http://www.w3.org/2000/svg' width='")
+                .number(width)
+                .append("' height='")
+                .number(height)
+                .append("' stroke-linecap='square'>");
+        if (!transparentBg) {
+            text.append("<rect width='")
+                    .number(width)
+                    .append("' height='")
+                    .number(height)
+                    .append("' fill='#ffffff'/>");
+        }
+        if (compact) {
+            writeGrouped(graph, outline, text);
+            text.append("</svg>");
+            text.flush();
+            return;
+        }
+
+        for (int rel = 0; rel < graph.relationshipCount(); rel++) {
+            int from = graph.from(rel);
+            int to = graph.to(rel);
+            text.append("<line x1='")
+                    .number(graph.x(from))
+                    .append("' y1='")
+                    .number(graph.y(from))
+                    .append("' x2='")
+                    .number(graph.x(to))
+                    .append("' y2='")
+                    .number(graph.y(to))
+                    .append("' stroke='#")
+                    .hex(graph.rgb(from))
+                    .append("'/>");
+        }
+        for (int node = 0; node < graph.nodeCount(); node++) {
+            circle(text, graph, node).append("' fill='#").hex(graph.rgb(node)).append("'/>");
+            if (outline) {
+                circle(text, graph, node)
+                        .append("' fill='none' stroke='#")
+                        .hex(darker(graph.rgb(node)))
+                        .append("' stroke-width='0.5'/>");
+            }
+        }
+        text.append("</svg>");
+        text.flush();
+    }
+
+    private static void writeGrouped(Graph graph, boolean outline, TextBuffer text)
+            throws IOException {
+        long[] rels = byColor(graph.relationshipCount(), rel -> graph.rgb(graph.from(rel)));
+        text.append("<g fill='none'>");
+        for (int i = 0; i < rels.length; i++) {
+            int rgb = (int) (rels[i] >>> 32);
+            if (i == 0 || rgb != (int) (rels[i - 1] >>> 32)) {
+                text.append(i == 0 ? "<path stroke='#" : "'/><path stroke='#")
+                        .hex(rgb)
+                        .append("' d='");
+            }
+            int from = graph.from((int) rels[i]);
+            int to = graph.to((int) rels[i]);
+            text.append('M')
+                    .number(graph.x(from))
+                    .append(' ')
+                    .number(graph.y(from))
+                    .append('L')
+                    .number(graph.x(to))
+                    .append(' ')
+                    .number(graph.y(to));
+        }
+        text.append(rels.length > 0 ? "'/></g>" : "</g>");
+
+        long[] nodes = byColor(graph.nodeCount(), graph::rgb);
+        writeCircles(graph, nodes, false, text);
+        if (outline) {
+            text.append("<g fill='none' stroke-width='0.5'>");
+            writeCircles(graph, nodes, true, text);
+            text.append("</g>");
+        }
+    }
+
+    // One group per color, filled with it or outlined with a darker one
+    private static void writeCircles(Graph graph, long[] nodes, boolean outline, TextBuffer text)
+            throws IOException {
+        for (int i = 0; i < nodes.length; i++) {
+            int rgb = (int) (nodes[i] >>> 32);
+            if (i == 0 || rgb != (int) (nodes[i - 1] >>> 32)) {
+                text.append(i == 0 ? "" : "</g>")
+                        .append(outline ? "<g stroke='#" : "<g fill='#")
+                        .hex(outline ? darker(rgb) : rgb)
+                        .append("'>");
+            }
+            circle(text, graph, (int) nodes[i]).append("'/>");
+        }
+        if (nodes.length > 0) {
+            text.append("</g>");
+        }
+    }
+
+    // Indices in the low half and their color in the high half, sorted by color and then index
+    private static long[] byColor(int count, IntUnaryOperator rgb) {
+        long[] sorted = new long[count];
+        for (int i = 0; i < count; i++) {
+            sorted[i] = (long) (rgb.applyAsInt(i) & 0xFFFFFF) << 32 | i;
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    // Half as bright
+    private static int darker(int rgb) {
+        return ((rgb >> 16 & 0xFF) + 1) >> 1 << 16
+                | ((rgb >> 8 & 0xFF) + 1) >> 1 << 8
+                | ((rgb & 0xFF) + 1) >> 1;
+    }
+
+    // Opens a circle element, up to the value of its last attribute
+    private static TextBuffer circle(TextBuffer text, Graph graph, int node) throws IOException {
+        return text.append("<circle cx='")
+                .number(graph.x(node))
+                .append("' cy='")
+                .number(graph.y(node))
+                .append("' r='")
+                .number(graph.radius(node));
+    }
+}
@@ -0,0 +1,87 @@
+package img2graph.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+
+/**
+ * Collects text for an {@link Appendable} in a fixed buffer, with numbers and colors formatted
+ * straight into it instead of through intermediate strings.
+ */
+final class TextBuffer {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Appendable out;
+    private final char[] chars = new char[8192];
+    private int size;
+
+    TextBuffer(Appendable out) {
+        this.out = out;
+    }
+
+    TextBuffer append(String text) throws IOException {
+        for (int from = 0; from < text.length(); ) {
+            if (size == chars.length) {
+                flush();
+            }
+            int to = Math.min(text.length(), from + chars.length - size);
+            text.getChars(from, to, chars, size);
+            size += to - from;
+            from = to;
+        }
+        return this;
+    }
+
+    TextBuffer append(char c) throws IOException {
+        if (size == chars.length) {
+            flush();
+        }
+        chars[size++] = c;
+        return this;
+    }
+
+    TextBuffer number(int value) throws IOException {
+        if (size + 11 > chars.length) {
+            flush();
+        }
+        if (value < 0) {
+            chars[size++] = '-';
+            if (value == Integer.MIN_VALUE) {
+                return append("2147483648");
+            }
+            value = -value;
+        }
+        int digits = 1;
+        for (int rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        size += digits;
+        for (int i = size - 1; i >= size - digits; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return this;
+    }
+
+    // The RGB part of a packed color, as six lower case hex digits
+    TextBuffer hex(int rgb) throws IOException {
+        if (size + 6 > chars.length) {
+            flush();
+        }
+        for (int shift = 20; shift >= 0; shift -= 4) {
+            chars[size++] = HEX[rgb >> shift & 0xF];
+        }
+        return this;
+    }
+
+    void flush() throws IOException {
+        if (out instanceof Writer writer) {
+            writer.write(chars, 0, size);
+        } else if (out instanceof StringBuilder builder) {
+            builder.append(chars, 0, size);
+        } else {
+            out.append(CharBuffer.wrap(chars, 0, size));
+        }
+        size = 0;
+    }
+}
@@ -2,5 +2,4 @@ module img2graph.core {
     exports img2graph.core;
 
     requires transitive java.desktop;
-    requires org.jfree.svg;
 }
@@ -4,10 +4,13 @@ import io.quarkus.qute.Template;
 import io.quarkus.qute.TemplateInstance;
 import io.smallrye.mutiny.Uni;
 import java.net.URI;
+import java.util.zip.GZIPOutputStream;
 import javax.inject.Inject;
 import javax.ws.rs.*;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import org.jboss.resteasy.reactive.MultipartForm;
 
 @Path("/")
@@ -26,27 +29,57 @@ public class ImageToGraphResource {
     @POST
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     @Produces("image/svg+xml")
-    public Response convert(@MultipartForm UploadFormData input) {
-        String result = imageToGraphService.convert(input);
-        if (input.shouldRedirectToArrows()) {
-            return Response.seeOther(URI.create(result)).build();
-        } else {
-            return Response.ok().header("Content-Disposition", "inline").entity(result).build();
+    public Response convert(
+            @MultipartForm UploadFormData input,
+            @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) {
+        if (input.shouldRedirectToArrows() && input.file != null) {
+            return Response.seeOther(URI.create(imageToGraphService.arrowsUrl(input))).build();
         }
+        return svgResponse(imageToGraphService.convert(input), acceptEncoding);
     }
 
     @POST
     @Path("/preview")
     @Consumes(MediaType.MULTIPART_FORM_DATA)
     @Produces("image/svg+xml")
-    public Uni<Response> preview(@MultipartForm UploadFormData input) {
+    public Uni<Response> preview(
+            @MultipartForm UploadFormData input,
+            @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) {
         return Uni.createFrom()
                 .item(() -> imageToGraphService.preview(input))
-                .map(
-                        content ->
-                                Response.ok()
-                                        .header("Content-Disposition", "inline")
-                                        .entity(content)
-                                        .build());
+                .map(content -> svgResponse(content, acceptEncoding));
+    }
+
+    // Gzipped while it is written if the client accepts it
+    private static Response svgResponse(StreamingOutput svg, String acceptEncoding) {
+        var response =
+                Response.ok()
+                        .header("Content-Disposition", "inline")
+                        .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (!acceptsGzip(acceptEncoding)) {
+            return response.entity(svg).build();
+        }
+        StreamingOutput gzipped =
+                out -> {
+                    var gzip = new GZIPOutputStream(out, 1 << 16);
+                    svg.write(gzip);
+                    // Only finished, the response stream is closed by the container
+                    gzip.finish();
+                };
+        return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").entity(gzipped).build();
+    }
+
+    // Whether gzip is listed, and not with a quality of 0
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
     }
 }
@@ -1,15 +1,21 @@
 package image2graph.web;
 
+import img2graph.core.Arguments;
+import img2graph.core.Graph;
 import img2graph.core.ImageToGraph;
 import img2graph.core.Output;
 import io.quarkus.runtime.StartupEvent;
 import io.smallrye.common.annotation.Blocking;
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import javax.enterprise.event.Observes;
 import javax.inject.Singleton;
+import javax.ws.rs.core.StreamingOutput;
 
 @Singleton
 public class ImageToGraphService {
@@ -26,29 +32,39 @@ public class ImageToGraphService {
         }
     }
 
-    public String preview(UploadFormData input) {
+    public StreamingOutput preview(UploadFormData input) {
         var arguments = input.asArguments().withTargetResolution(350);
         var graph = imageToGraph.process(arguments, new ByteArrayInputStream(previewData));
-        return Output.graphToSvg(graph, true, arguments.outline());
+        return svg(graph, arguments);
     }
 
     @Blocking
-    public String convert(UploadFormData input) {
-        var arguments = input.asArguments();
+    public StreamingOutput convert(UploadFormData input) {
         if (input.file == null) {
-            return "No File Processed";
+            return out -> out.write("No File Processed".getBytes(StandardCharsets.UTF_8));
         }
+        return svg(process(input), input.asArguments());
+    }
+
+    @Blocking
+    public String arrowsUrl(UploadFormData input) {
+        return Output.arrowsUrl(process(input));
+    }
 
+    private Graph process(UploadFormData input) {
         try (var inputStream = Files.newInputStream(input.file.filePath())) {
-            var graph = imageToGraph.process(arguments, inputStream);
-            if (input.shouldRedirectToArrows()) {
-                String json = Output.graphToJson(graph);
-                return Output.arrowsUrl(json);
-            } else {
-                return Output.graphToSvg(graph, true, arguments.outline());
-            }
+            return imageToGraph.process(input.asArguments(), inputStream);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
+
+    // Written out while the response is sent, instead of as one string up front
+    private static StreamingOutput svg(Graph graph, Arguments arguments) {
+        return out -> {
+            var writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            Output.writeSvg(graph, true, arguments.outline(), arguments.compactSvg(), writer);
+            writer.flush();
+        };
+    }
 }
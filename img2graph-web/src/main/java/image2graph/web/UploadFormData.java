@@ -21,6 +21,15 @@ public final class UploadFormData {
     @RestForm("outline")
     public String outline;
 
+    @RestForm("poisson-disk")
+    public String poissonDisk;
+
+    @RestForm("delaunay")
+    public String delaunay;
+
+    @RestForm("compact-svg")
+    public String compactSvg;
+
     @RestForm("node-max")
     public Integer nodeMax;
 
@@ -55,7 +64,12 @@ public final class UploadFormData {
                 colorDepth,
                 ON.equalsIgnoreCase(useSimpleColors),
                 Arguments.DEFAULT_ARGUMENTS.transparentBg(),
-                ON.equalsIgnoreCase(outline));
+                ON.equalsIgnoreCase(outline),
+                Arguments.DEFAULT_ARGUMENTS.exactMedianCut(),
+                Arguments.DEFAULT_ARGUMENTS.seed(),
+                ON.equalsIgnoreCase(poissonDisk),
+                ON.equalsIgnoreCase(delaunay),
+                ON.equalsIgnoreCase(compactSvg));
     }
 
     public boolean shouldRedirectToArrows() {